@@ -2,18 +2,18 @@ package net.countered.settlementroads.client;
 
 import net.countered.settlementroads.client.gui.RoadDebugScreen;
 import net.countered.settlementroads.helpers.Records;
-import net.countered.settlementroads.persistence.attachments.WorldDataAttachment;
+import net.countered.settlementroads.persistence.RoadCommitQueue;
+import net.countered.settlementroads.persistence.RoadRegionStore;
 import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
 import net.fabricmc.fabric.api.client.keybinding.v1.KeyBindingHelper;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.option.KeyBinding;
 import net.minecraft.client.util.InputUtil;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.world.ServerWorld;
-import net.minecraft.util.math.BlockPos;
 import org.lwjgl.glfw.GLFW;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class SettlementRoadsClient implements ClientModInitializer {
@@ -46,25 +46,25 @@ public class SettlementRoadsClient implements ClientModInitializer {
         }
 
         // 获取服务器世界（仅单人游戏）
-        ServerWorld world = client.getServer() == null ? null : client.getServer().getOverworld();
-        if (world == null) {
+        MinecraftServer server = client.getServer();
+        if (server == null) {
             return;
         }
 
-        // 获取数据
-        Records.StructureLocationData structureData = world.getAttached(WorldDataAttachment.STRUCTURE_LOCATIONS);
-        List<Records.StructureConnection> connections = world.getAttachedOrCreate(
-                WorldDataAttachment.CONNECTED_STRUCTURES, 
-                ArrayList::new
-        );
-        List<Records.RoadData> roads = world.getAttachedOrCreate(
-                WorldDataAttachment.ROAD_DATA_LIST, 
-                ArrayList::new
-        );
-
-        List<BlockPos> structures = structureData != null ? structureData.structureLocations() : new ArrayList<>();
-
-        // 打开调试屏幕
-        client.setScreen(new RoadDebugScreen(structures, connections, roads));
+        // 道路分区文件在服务器线程上读取，读完后回到客户端线程打开屏幕
+        server.submit(() -> {
+            ServerWorld world = server.getOverworld();
+            RoadRegionStore store = world == null ? null : RoadRegionStore.get(world);
+            return store == null ? List.<Records.RoadData>of() : store.readAllPieces();
+        }).thenAcceptAsync(roads -> {
+            ServerWorld world = server.getOverworld();
+            // 读取期间玩家已退出世界或打开了其他屏幕
+            if (world == null || client.getServer() != server || client.currentScreen != null) {
+                return;
+            }
+            // 客户端线程只读取服务器发布的快照
+            RoadCommitQueue.Snapshot snapshot = RoadCommitQueue.getSnapshot(world);
+            client.setScreen(new RoadDebugScreen(snapshot.structureLocations(), snapshot.connections(), roads));
+        }, client);
     }
 }
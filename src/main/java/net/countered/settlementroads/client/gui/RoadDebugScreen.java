@@ -1,6 +1,7 @@
 package net.countered.settlementroads.client.gui;
 
 import net.countered.settlementroads.helpers.Records;
+import net.countered.settlementroads.helpers.RoadScheduler;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.font.TextRenderer;
 import net.minecraft.client.gui.DrawContext;
@@ -242,6 +243,8 @@ public class RoadDebugScreen extends Screen {
             }
         }
         
+        RoadScheduler.Report queueReport = RoadScheduler.getReport();
+
         // 准备显示文本
         String[] labels = {
             "结构: " + structures.size(),
@@ -250,6 +253,7 @@ public class RoadDebugScreen extends Screen {
             "已完成: " + completed,
             "失败: " + failed,
             "道路: " + roads.size(),
+            "队列: " + queueReport.pending() + " (" + queueReport.running() + "/" + queueReport.limit() + ")",
             "缩放: " + String.format("%.1fx", zoom)
         };
         
@@ -260,6 +264,7 @@ public class RoadDebugScreen extends Screen {
             0xFF2ECC71, // 绿色
             0xFFFF4444, // 红色
             0xFF3498DB, // 蓝色
+            0xFF9B59B6, // 紫色
             0xFFBDC3C7  // 灰色
         };
         
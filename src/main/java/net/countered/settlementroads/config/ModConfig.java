@@ -4,18 +4,32 @@ import eu.midnightdust.lib.config.MidnightConfig;
 
 public class ModConfig extends MidnightConfig {
 
+    public enum ExecutorMode {
+        PLATFORM,
+        VIRTUAL
+    }
+
     @Entry(category = "structures")
     public static int maxLocatingCount = 100;
 
     @Entry(category = "structures")
     public static String structureToLocate = "#minecraft:village";
 
+    @Entry(category = "structures")
+    public static boolean predictStructurePositions = true;
+
+    @Entry(category = "structures", min = 8, max = 512)
+    public static int structurePredictionRadius = 64;
+
     @Entry(category = "pre-generation")
     public static int initialLocatingCount = 7;
 
     @Entry(category = "roads")
     public static int averagingRadius = 1;
 
+    @Entry(category = "roads", min = 0, max = 100)
+    public static int maxRoadGradePercent = 0;
+
     @Entry(category = "roads")
     public static boolean allowArtificial = true;
 
@@ -25,12 +39,51 @@ public class ModConfig extends MidnightConfig {
     @Entry(category = "roads")
     public static boolean placeWaypoints = false;
 
+    @Entry(category = "roads")
+    public static boolean retrofitExistingChunks = false;
+
     @Entry(category = "roads", min = 3, max = 10)
     public static int maxHeightDifference = 5;
 
     @Entry(category = "roads", min = 2, max = 10)
     public static int maxTerrainStability = 4;
 
+    @Entry(category = "roads", min = 0, max = 100000)
+    public static int hierarchicalPathfindingDistance = 1024;
+
+    @Entry(category = "roads", min = 16, max = 64)
+    public static int hierarchicalClusterSize = 32;
+
     @Entry(category = "pre-generation", min = 1, max = 10)
     public static int maxConcurrentRoadGeneration = 3;
-}
\ No newline at end of file
+
+    @Entry(category = "pre-generation", min = 1, max = 1440)
+    public static int failedRoadRetryMinutes = 10;
+
+    @Entry(category = "performance", min = 0, max = 256)
+    public static int costRasterCorridorWidth = 64;
+
+    @Entry(category = "performance", min = 1, max = 1024)
+    public static int heightCacheSizeMB = 32;
+
+    @Entry(category = "performance", min = 0, max = 50)
+    public static int retrofitBudgetMillis = 2;
+
+    @Entry(category = "performance", min = 0, max = 20)
+    public static int retrofitChunkLoadsPerSecond = 2;
+
+    @Entry(category = "performance", min = 16, max = 100000)
+    public static int pathfindingSliceExpansions = 1000;
+
+    @Entry(category = "performance", min = 100, max = 50000)
+    public static int pathfindingSliceMicros = 5000;
+
+    @Entry(category = "performance")
+    public static ExecutorMode executorMode = ExecutorMode.PLATFORM;
+
+    @Entry(category = "performance", min = 0, max = 64)
+    public static int executorThreads = 0;
+
+    @Entry(category = "performance", min = 16, max = 4096)
+    public static int executorQueueSize = 256;
+}
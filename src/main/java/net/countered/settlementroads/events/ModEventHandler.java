@@ -2,13 +2,23 @@ package net.countered.settlementroads.events;
 
 
 import net.countered.settlementroads.config.ModConfig;
+import net.countered.settlementroads.features.PlacementRules;
 import net.countered.settlementroads.features.RoadFeature;
+import net.countered.settlementroads.features.RoadRetrofitService;
 import net.countered.settlementroads.features.config.RoadFeatureConfig;
+import net.countered.settlementroads.features.roadlogic.BiomeCostSampler;
 import net.countered.settlementroads.features.roadlogic.Road;
-import net.countered.settlementroads.features.roadlogic.RoadPathCalculator;
+import net.countered.settlementroads.features.roadlogic.TerrainHeightCache;
 import net.countered.settlementroads.helpers.Records;
+import net.countered.settlementroads.helpers.RoadExecutors;
+import net.countered.settlementroads.helpers.RoadRetryPolicy;
+import net.countered.settlementroads.helpers.RoadScheduler;
 import net.countered.settlementroads.helpers.StructureConnector;
+import net.countered.settlementroads.helpers.StructureLocateService;
+import net.countered.settlementroads.persistence.RoadCommitQueue;
+import net.countered.settlementroads.persistence.RoadRegionStore;
 import net.countered.settlementroads.persistence.attachments.WorldDataAttachment;
+import net.fabricmc.fabric.api.event.lifecycle.v1.CommonLifecycleEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerWorldEvents;
@@ -19,55 +29,115 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static net.countered.settlementroads.SettlementRoads.MOD_ID;
 
 public class ModEventHandler {
 
-    private static final int THREAD_COUNT= 7;
     private static final Logger LOGGER = LoggerFactory.getLogger(MOD_ID);
-    private static ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
-    private static final ConcurrentHashMap<String, Future<?>> runningTasks = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, RoadTask> runningTasks = new ConcurrentHashMap<>();
+    // a cancelled slice returns within its time slice, unless it is committing a found road
+    private static final long TASK_STOP_TIMEOUT_MILLIS = 5000;
 
     public static void register() {
 
+        ServerLifecycleEvents.SERVER_STARTING.register(server -> RoadExecutors.start());
+
+        // placement tables depend on block tags, datapack reloads can change them
+        CommonLifecycleEvents.TAGS_LOADED.register((registries, client) -> PlacementRules.rebuild());
+
         ServerWorldEvents.LOAD.register((server, serverWorld) -> {
-            restartExecutorIfNeeded();
             if (!serverWorld.getRegistryKey().equals(net.minecraft.world.World.OVERWORLD)) return;
+            // opens the region store on the main thread, migrating roads from older saves
+            RoadRegionStore.forWorld(serverWorld);
+            // the scheduler queue is not saved, planned roads of the last session are queued again
+            RoadScheduler.restore(serverWorld);
             Records.StructureLocationData structureLocationData = serverWorld.getAttachedOrCreate(WorldDataAttachment.STRUCTURE_LOCATIONS, () -> new Records.StructureLocationData(new ArrayList<>()));
 
             if (structureLocationData.structureLocations().size() < ModConfig.initialLocatingCount) {
-                for (int i = 0; i < ModConfig.initialLocatingCount; i++) {
-                    StructureConnector.cacheNewConnection(serverWorld, false);
-                    tryGenerateNewRoads(serverWorld, true, 5000);
-                }
+                // 异步定位，结果在之后的服务器 tick 中加入并排队生成道路
+                StructureConnector.cacheNewConnections(serverWorld, false, ModConfig.initialLocatingCount);
             }
+            // worldgen reads the structure data from the published snapshot
+            RoadCommitQueue.publish(serverWorld);
         });
 
         ServerWorldEvents.UNLOAD.register((server, serverWorld) -> {
-            if (!serverWorld.getRegistryKey().equals(net.minecraft.world.World.OVERWORLD)) return;
-            Future<?> task = runningTasks.remove(serverWorld.getRegistryKey().getValue().toString());
-            if (task != null && !task.isDone()) {
-                task.cancel(true);
-                LOGGER.debug("Aborted running road task for world: {}", serverWorld.getRegistryKey().getValue());
+            if (serverWorld.getRegistryKey().equals(net.minecraft.world.World.OVERWORLD)) {
+                // a slice still running would write into the stores after they are closed, so stop the searches first
+                String worldId = serverWorld.getRegistryKey().getValue().toString();
+                List<RoadTask> tasks = new ArrayList<>();
+                runningTasks.entrySet().removeIf(entry -> {
+                    if (!entry.getKey().startsWith(worldId + "_")) return false;
+                    if (!entry.getValue().isDone()) {
+                        entry.getValue().cancel();
+                        tasks.add(entry.getValue());
+                        LOGGER.debug("Aborted running road task for world: {}", serverWorld.getRegistryKey().getValue());
+                    }
+                    return true;
+                });
+                for (RoadTask task : tasks) {
+                    if (!task.awaitDone(TASK_STOP_TIMEOUT_MILLIS)) {
+                        LOGGER.warn("Road task {} did not stop within {} ms", task.taskId, TASK_STOP_TIMEOUT_MILLIS);
+                    }
+                }
+            }
+            BiomeCostSampler.remove(serverWorld);
+            RoadCommitQueue.drainAll();
+            RoadRetrofitService retrofitService = RoadRetrofitService.remove(serverWorld);
+            if (retrofitService != null) {
+                retrofitService.close();
+            }
+            RoadRegionStore roadStore = RoadRegionStore.remove(serverWorld);
+            if (roadStore != null) {
+                roadStore.close();
+            }
+            TerrainHeightCache heightCache = TerrainHeightCache.remove(serverWorld);
+            if (heightCache != null) {
+                LOGGER.debug("Height cache for {}: {}", serverWorld.getRegistryKey().getValue(), heightCache.getStats());
             }
         });
 
         ServerTickEvents.START_WORLD_TICK.register((serverWorld) -> {
             if (!serverWorld.getRegistryKey().equals(net.minecraft.world.World.OVERWORLD)) return;
+            RoadRetryPolicy.tick(serverWorld);
+            RoadScheduler.tick(serverWorld);
             tryGenerateNewRoads(serverWorld, true, 5000);
+            RoadRetrofitService.forWorld(serverWorld).tick();
+        });
+
+        ServerTickEvents.END_SERVER_TICK.register(server -> {
+            StructureLocateService.tick();
+            RoadCommitQueue.drain();
+        });
+
+        ServerLifecycleEvents.BEFORE_SAVE.register((server, flush, force) -> {
+            RoadRegionStore.saveAll(false);
+            RoadRetrofitService.saveAll();
         });
 
         ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
-            RoadPathCalculator.heightCache.clear();
-            runningTasks.values().forEach(future -> future.cancel(true));
+            TerrainHeightCache.clear();
+            BiomeCostSampler.clear();
+            runningTasks.values().forEach(RoadTask::cancel);
             runningTasks.clear();
-            executor.shutdownNow();
+            RoadScheduler.clear();
+            RoadRetryPolicy.clear();
+            StructureLocateService.clear();
+            RoadExecutors.shutdown();
             LOGGER.debug("SettlementRoads: ExecutorService shut down.");
+            // apply the results that finished before the shutdown, then persist them
+            RoadCommitQueue.drainAll();
+            RoadRegionStore.closeAll();
+            RoadRetrofitService.closeAll();
+            RoadCommitQueue.clear();
         });
     }
 
@@ -75,13 +145,11 @@ public class ModEventHandler {
         // 清理已完成的任务
         runningTasks.entrySet().removeIf(entry -> entry.getValue().isDone());
         
-        // 检查是否达到并发上限
-        if (runningTasks.size() >= ModConfig.maxConcurrentRoadGeneration) {
-            return;
-        }
-        
-        if (!StructureConnector.cachedStructureConnections.isEmpty()) {
-            Records.StructureConnection structureConnection = StructureConnector.cachedStructureConnections.poll();
+        // 按玩家距离选出下一条连接，达到并发上限时返回 null
+        Records.StructureConnection structureConnection = RoadScheduler.pollNext(runningTasks.size());
+        if (structureConnection != null) {
+            // 之前接近终点却步数用尽的连接会获得更多步数
+            steps = RoadRetryPolicy.budgetFor(serverWorld, structureConnection, steps);
             ConfiguredFeature<?, ?> feature = serverWorld.getRegistryManager()
                     .get(RegistryKeys.CONFIGURED_FEATURE)
                     .get(RoadFeature.ROAD_FEATURE_KEY);
@@ -90,16 +158,9 @@ public class ModEventHandler {
                 if (async) {
                     // 使用唯一的任务ID而不是世界ID，允许多个任务并发
                     String taskId = serverWorld.getRegistryKey().getValue().toString() + "_" + System.nanoTime();
-                    Future<?> future = executor.submit(() -> {
-                        try {
-                            new Road(serverWorld, structureConnection, roadConfig).generateRoad(steps);
-                        } catch (Exception e) {
-                            LOGGER.error("Error generating road", e);
-                        } finally {
-                            runningTasks.remove(taskId);
-                        }
-                    });
-                    runningTasks.put(taskId, future);
+                    RoadTask task = new RoadTask(taskId, serverWorld, new Road(serverWorld, structureConnection, roadConfig), steps);
+                    runningTasks.put(taskId, task);
+                    task.schedule();
                 }
                 else {
                     new Road(serverWorld, structureConnection, roadConfig).generateRoad(steps);
@@ -108,10 +169,87 @@ public class ModEventHandler {
         }
     }
 
-    private static void restartExecutorIfNeeded() {
-        if (executor.isShutdown() || executor.isTerminated()) {
-            executor = Executors.newFixedThreadPool(THREAD_COUNT);
-            LOGGER.debug("SettlementRoads: ExecutorService restarted.");
+    // progress (0..1) of every running road task, keyed by task id
+    public static Map<String, Float> getRoadTaskProgress() {
+        Map<String, Float> progress = new HashMap<>();
+        runningTasks.forEach((taskId, task) -> progress.put(taskId, task.getProgress()));
+        return progress;
+    }
+
+    /**
+     * Runs a road search one slice at a time and re-queues itself after each slice,
+     * so concurrent searches take turns on the executor instead of holding a thread until they finish.
+     */
+    private static final class RoadTask implements Runnable {
+        private final String taskId;
+        private final ServerWorld serverWorld;
+        private final Road road;
+        private final int steps;
+        private final CountDownLatch stopped = new CountDownLatch(1);
+        private volatile boolean done;
+
+        RoadTask(String taskId, ServerWorld serverWorld, Road road, int steps) {
+            this.taskId = taskId;
+            this.serverWorld = serverWorld;
+            this.road = road;
+            this.steps = steps;
+        }
+
+        void schedule() {
+            try {
+                RoadExecutors.compute().execute(this);
+            } catch (RejectedExecutionException e) {
+                // no slice runs again, so the connection is handed back to the scheduler here
+                road.abort();
+                Records.StructureConnection connection = road.getConnection();
+                serverWorld.getServer().execute(() -> RoadScheduler.enqueue(connection));
+                complete();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean finished = true;
+            try {
+                finished = road.runSlice(steps, ModConfig.pathfindingSliceExpansions, ModConfig.pathfindingSliceMicros * 1000L);
+            } catch (Exception e) {
+                LOGGER.error("Error generating road", e);
+                road.abortWithError();
+            }
+            if (finished) {
+                complete();
+            }
+            else {
+                schedule();
+            }
+        }
+
+        void cancel() {
+            road.cancel();
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        // waits for the last slice to return, false if it is still running after the timeout
+        boolean awaitDone(long timeoutMillis) {
+            try {
+                return stopped.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        float getProgress() {
+            return road.getProgress();
+        }
+
+        private void complete() {
+            done = true;
+            runningTasks.remove(taskId);
+            stopped.countDown();
         }
     }
 }
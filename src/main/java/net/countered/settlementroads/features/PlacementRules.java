@@ -0,0 +1,75 @@
+package net.countered.settlementroads.features;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.registry.tag.BlockTags;
+
+import java.util.BitSet;
+
+/**
+ * Placement checks compiled into bit sets indexed by block state raw id, so checks on the worldgen threads are a
+ * single bit probe instead of set lookups and several tag checks. The tables depend on block tags and are rebuilt
+ * whenever tags are (re)loaded, see {@link #rebuild()}.
+ */
+public final class PlacementRules {
+
+    private record Tables(BitSet roadBlocked, BitSet keepAbove, BitSet decorationBlocked) {}
+
+    private static volatile Tables tables;
+
+    private PlacementRules() {
+    }
+
+    // true if no road may be placed on top of this surface block
+    public static boolean isRoadBlocked(BlockState state) {
+        return tables().roadBlocked.get(Block.getRawIdFromState(state));
+    }
+
+    // true if clearing the space above a road stops at this block
+    public static boolean keepsAboveRoad(BlockState state) {
+        return tables().keepAbove.get(Block.getRawIdFromState(state));
+    }
+
+    // true if no decoration may stand on this block
+    public static boolean isDecorationBlocked(BlockState state) {
+        return tables().decorationBlocked.get(Block.getRawIdFromState(state));
+    }
+
+    public static void rebuild() {
+        int size = Block.STATE_IDS.size();
+        BitSet roadBlocked = new BitSet(size);
+        BitSet keepAbove = new BitSet(size);
+        BitSet decorationBlocked = new BitSet(size);
+        for (BlockState state : Block.STATE_IDS) {
+            int id = Block.getRawIdFromState(state);
+            Block block = state.getBlock();
+            BlockState defaultState = block.getDefaultState();
+            boolean logs = defaultState.isIn(BlockTags.LOGS);
+            if (RoadFeature.dontPlaceHere.contains(block)
+                    || defaultState.isIn(BlockTags.LEAVES)
+                    || logs
+                    || defaultState.isIn(BlockTags.UNDERWATER_BONEMEALS)
+                    || defaultState.isIn(BlockTags.WOODEN_FENCES)
+                    || defaultState.isIn(BlockTags.PLANKS)) {
+                roadBlocked.set(id);
+            }
+            if (block == Blocks.AIR || state.isIn(BlockTags.LOGS) || state.isIn(BlockTags.FENCES)) {
+                keepAbove.set(id);
+            }
+            if (block == Blocks.WATER || block == Blocks.LAVA || state.isIn(BlockTags.LOGS) || RoadFeature.dontPlaceHere.contains(block)) {
+                decorationBlocked.set(id);
+            }
+        }
+        tables = new Tables(roadBlocked, keepAbove, decorationBlocked);
+    }
+
+    private static Tables tables() {
+        Tables current = tables;
+        if (current == null) {
+            rebuild();
+            current = tables;
+        }
+        return current;
+    }
+}
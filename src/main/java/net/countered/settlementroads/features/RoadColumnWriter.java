@@ -0,0 +1,106 @@
+package net.countered.settlementroads.features;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.StructureWorldAccess;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.ProtoChunk;
+import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.world.chunk.WrapperProtoChunk;
+
+import java.util.Map;
+
+/**
+ * Reads and writes the road columns of the chunk being decorated straight through its sections instead of
+ * going through {@link StructureWorldAccess#setBlockState} for every block. Written blocks update the chunk's
+ * heightmaps in place and are marked for post-processing like {@link net.minecraft.world.ChunkRegion} does;
+ * light is computed by the later light stage of chunk generation.
+ * Positions outside the chunk, blocks with block entities and chunks that are already in the world
+ * fall back to the world access. Chunks that are already in the world read the surface from
+ * {@link Heightmap.Type#WORLD_SURFACE}, since they no longer keep the worldgen heightmap up to date.
+ */
+final class RoadColumnWriter {
+
+    private final StructureWorldAccess world;
+    private final Chunk chunk;
+    // null when the chunk must not be edited directly
+    private final ProtoChunk protoChunk;
+    private final int chunkX, chunkZ;
+    private final Heightmap.Type surfaceType;
+    private final BlockPos.Mutable mutable = new BlockPos.Mutable();
+    private boolean modified;
+
+    RoadColumnWriter(StructureWorldAccess world, ChunkPos chunkPos) {
+        this.world = world;
+        this.chunkX = chunkPos.x;
+        this.chunkZ = chunkPos.z;
+        this.chunk = world.getChunk(chunkX, chunkZ);
+        this.protoChunk = chunk instanceof ProtoChunk proto && !(chunk instanceof WrapperProtoChunk) ? proto : null;
+        this.surfaceType = chunk instanceof WorldChunk ? Heightmap.Type.WORLD_SURFACE : Heightmap.Type.WORLD_SURFACE_WG;
+    }
+
+    private boolean isInChunk(int x, int z) {
+        return x >> 4 == chunkX && z >> 4 == chunkZ;
+    }
+
+    // y of the first free block above the surface, like getTopY with WORLD_SURFACE_WG
+    int getTopY(int x, int z) {
+        if (isInChunk(x, z)) {
+            return chunk.sampleHeightmap(surfaceType, x & 15, z & 15) + 1;
+        }
+        return world.getTopY(surfaceType, x, z);
+    }
+
+    BlockState getBlockState(int x, int y, int z) {
+        if (isInChunk(x, z)) {
+            if (chunk.isOutOfHeightLimit(y)) {
+                return Blocks.VOID_AIR.getDefaultState();
+            }
+            ChunkSection section = chunk.getSection(chunk.getSectionIndex(y));
+            return section.getBlockState(x & 15, y & 15, z & 15);
+        }
+        return world.getBlockState(mutable.set(x, y, z));
+    }
+
+    void setBlockState(int x, int y, int z, BlockState state) {
+        if (protoChunk == null || !isInChunk(x, z)) {
+            world.setBlockState(mutable.set(x, y, z), state, 3);
+            return;
+        }
+        if (protoChunk.isOutOfHeightLimit(y)) {
+            return;
+        }
+        ChunkSection section = protoChunk.getSection(protoChunk.getSectionIndex(y));
+        int localX = x & 15;
+        int localZ = z & 15;
+        BlockState previous = section.getBlockState(localX, y & 15, localZ);
+        if (previous.hasBlockEntity() || state.hasBlockEntity()) {
+            world.setBlockState(mutable.set(x, y, z), state, 3);
+            return;
+        }
+        if (previous == state) {
+            return;
+        }
+        // the locked overload keeps vanilla's concurrent modification check, the lock is uncontended here
+        section.setBlockState(localX, y & 15, localZ, state);
+        for (Map.Entry<Heightmap.Type, Heightmap> heightmap : protoChunk.getHeightmaps()) {
+            heightmap.getValue().trackUpdate(localX, y, localZ, state);
+        }
+        // same as ChunkRegion.setBlockState, states like fluids and connecting blocks are updated once the chunk is loaded
+        if (state.shouldPostProcess(world, mutable.set(x, y, z))) {
+            protoChunk.markBlockForPostProcessing(mutable);
+        }
+        modified = true;
+    }
+
+    // called once after all columns of the chunk were written
+    void finish() {
+        if (modified) {
+            protoChunk.setNeedsSaving(true);
+        }
+    }
+}
@@ -1,27 +1,26 @@
 package net.countered.settlementroads.features;
 
 import com.mojang.serialization.Codec;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import net.countered.settlementroads.SettlementRoads;
 import net.countered.settlementroads.config.ModConfig;
 import net.countered.settlementroads.features.config.RoadFeatureConfig;
 import net.countered.settlementroads.features.decoration.*;
-import net.countered.settlementroads.features.roadlogic.RoadPathCalculator;
-import net.countered.settlementroads.helpers.Records;
+import net.countered.settlementroads.features.roadlogic.ChunkPlacementPlan;
 import net.countered.settlementroads.helpers.StructureConnector;
-import net.countered.settlementroads.persistence.attachments.WorldDataAttachment;
+import net.countered.settlementroads.persistence.RoadCommitQueue;
+import net.countered.settlementroads.persistence.RoadRegionStore;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
 import net.minecraft.registry.RegistryKey;
 import net.minecraft.registry.RegistryKeys;
-import net.minecraft.registry.tag.BlockTags;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
-import net.minecraft.util.math.Vec3i;
-import net.minecraft.util.math.random.Random;
-import net.minecraft.world.Heightmap;
 import net.minecraft.world.StructureWorldAccess;
 import net.minecraft.world.gen.feature.ConfiguredFeature;
 import net.minecraft.world.gen.feature.Feature;
@@ -30,7 +29,6 @@ import net.minecraft.world.gen.feature.util.FeatureContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -61,19 +59,16 @@ public class RoadFeature extends Feature<RoadFeatureConfig> {
 
     @Override
     public boolean generate(FeatureContext<RoadFeatureConfig> context) {
-        if (RoadPathCalculator.heightCache.size() > 100_000){
-            RoadPathCalculator.heightCache.clear();
-        }
         ServerWorld serverWorld = context.getWorld().toServerWorld();
         StructureWorldAccess structureWorldAccess = context.getWorld();
-        Records.StructureLocationData structureLocationData = serverWorld.getAttached(WorldDataAttachment.STRUCTURE_LOCATIONS);
-        if (structureLocationData == null) {
+        RoadCommitQueue.Snapshot snapshot = RoadCommitQueue.getSnapshot(serverWorld);
+        if (snapshot.version() == 0) {
             return false;
         }
-        List<BlockPos> villageLocations = structureLocationData.structureLocations();;
+        List<BlockPos> villageLocations = snapshot.structureLocations();
         tryFindNewStructureConnection(villageLocations, serverWorld);
         Set<Decoration> roadDecorationCache = new HashSet<>();
-        runRoadLogic(structureWorldAccess, context, roadDecorationCache);
+        placeChunk(structureWorldAccess, new ChunkPos(context.getOrigin()), roadDecorationCache, null);
         RoadStructures.tryPlaceDecorations(roadDecorationCache);
         return true;
     }
@@ -82,7 +77,7 @@ public class RoadFeature extends Feature<RoadFeatureConfig> {
         if (villageLocations == null || villageLocations.size() < ModConfig.maxLocatingCount) {
             chunksForLocatingCounter++;
             if (chunksForLocatingCounter > 300) {
-                List<Records.StructureConnection> connectionList= serverWorld.getAttached(WorldDataAttachment.CONNECTED_STRUCTURES);
+                // the locate itself runs off-thread, only the request is made on the server thread
                 serverWorld.getServer().execute(() -> {
                     StructureConnector.cacheNewConnection(serverWorld, true);
                 });
@@ -91,91 +86,85 @@ public class RoadFeature extends Feature<RoadFeatureConfig> {
         }
     }
 
-    private void runRoadLogic(StructureWorldAccess structureWorldAccess, FeatureContext<RoadFeatureConfig> context, Set<Decoration> roadDecorationPlacementPositions) {
-        int averagingRadius = ModConfig.averagingRadius;
-        List<Records.RoadData> roadDataList = structureWorldAccess.toServerWorld().getAttached(WorldDataAttachment.ROAD_DATA_LIST);
-        if (roadDataList == null) return;
-        ChunkPos currentChunkPos = new ChunkPos(context.getOrigin());
-
-        Set<BlockPos> posAlreadyContainsSegment = new HashSet<>();
-        for (Records.RoadData data : roadDataList) {
-            int roadType = data.roadType();
-            List<BlockState> materials = data.materials();
-            List<Records.RoadSegmentPlacement> segmentList = data.roadSegmentList();
-
-            List<BlockPos> middlePositions = segmentList.stream().map(Records.RoadSegmentPlacement::middlePos).toList();
-            int segmentIndex = 0;
-            for (int i = 2; i < segmentList.size() - 2; i++) {
-                if (posAlreadyContainsSegment.contains(middlePositions.get(i))) continue;
-                segmentIndex++;
-                Records.RoadSegmentPlacement segment = segmentList.get(i);
-                BlockPos segmentMiddlePos = segment.middlePos();
-                // offset to structure
-                if (segmentIndex < 60 || segmentIndex > segmentList.size() - 60) continue;
-                ChunkPos middleChunkPos = new ChunkPos(segmentMiddlePos);
-                if (!middleChunkPos.equals(currentChunkPos)) continue;
-
-                BlockPos prevPos = middlePositions.get(i - 2);
-                BlockPos nextPos = middlePositions.get(i + 2);
-                List<Double> heights = new ArrayList<>();
-                for (int j = i - averagingRadius; j <= i + averagingRadius; j++) {
-                    if (j >= 0 && j < middlePositions.size()) {
-                        BlockPos samplePos = middlePositions.get(j);
-                        double y = structureWorldAccess.getTopY(Heightmap.Type.WORLD_SURFACE_WG, samplePos.getX(), samplePos.getZ());
-                        heights.add(y);
+    /**
+     * Replays the stored placement plans of one chunk. Used by chunk generation and by {@link RoadRetrofitService}
+     * for chunks that already exist, in which case the world access is the server world itself.
+     * Chunk generation passes null for {@code roadSeqs}. Otherwise only the plans of those roads are placed; the
+     * other roads are already in the chunk, so their segments only keep the listed roads from building over them.
+     */
+    static void placeChunk(StructureWorldAccess structureWorldAccess, ChunkPos currentChunkPos, Set<Decoration> roadDecorationPlacementPositions,
+                           LongSet roadSeqs) {
+        ServerWorld serverWorld = structureWorldAccess.toServerWorld();
+        ChunkPlacementPlan[] plans = RoadRegionStore.forWorld(serverWorld).getPlans(currentChunkPos);
+        if (plans.length == 0) return;
+
+        int baseX = currentChunkPos.getStartX();
+        int baseZ = currentChunkPos.getStartZ();
+        boolean followSurface = ModConfig.averagingRadius == 0;
+        IntSet placedMiddles = new IntOpenHashSet();
+        if (roadSeqs != null) {
+            for (ChunkPlacementPlan plan : plans) {
+                if (!roadSeqs.contains(plan.roadSeq)) {
+                    for (int middle : plan.middles) {
+                        placedMiddles.add(middle);
                     }
                 }
-
-                int averageY = (int) Math.round(heights.stream().mapToDouble(Double::doubleValue).average().orElse(segmentMiddlePos.getY()));
-                BlockPos averagedPos = new BlockPos(segmentMiddlePos.getX(), averageY, segmentMiddlePos.getZ());
-
-                Random random = context.getRandom();
-                if (!ModConfig.placeWaypoints) {
-                    for (BlockPos widthBlock : segment.positions()) {
-                        BlockPos correctedYPos = new BlockPos(widthBlock.getX(), averageY, widthBlock.getZ());
-                        placeOnSurface(structureWorldAccess, correctedYPos, materials, roadType, random);
-                    }
+            }
+        }
+        RoadColumnWriter writer = new RoadColumnWriter(structureWorldAccess, currentChunkPos);
+        for (ChunkPlacementPlan plan : plans) {
+            if (roadSeqs != null && !roadSeqs.contains(plan.roadSeq)) {
+                continue;
+            }
+            boolean[] placedSegments = new boolean[plan.segmentCount()];
+            int column = 0;
+            for (int segment = 0; segment < plan.segmentCount(); segment++) {
+                int columnEnd = plan.columnEnds[segment];
+                // 多条道路经过同一位置时只放置一次
+                if (!placedMiddles.add(plan.middles[segment])) {
+                    column = columnEnd;
+                    continue;
+                }
+                placedSegments[segment] = true;
+                if (ModConfig.placeWaypoints) {
+                    column = columnEnd;
+                    continue;
+                }
+                for (; column < columnEnd; column++) {
+                    int packed = plan.columns[column];
+                    placeOnSurface(structureWorldAccess, writer, baseX + ChunkPlacementPlan.unpackX(packed), ChunkPlacementPlan.unpackY(packed),
+                            baseZ + ChunkPlacementPlan.unpackZ(packed), plan, plan.materialIndex[column], followSurface);
+                }
+            }
+            for (ChunkPlacementPlan.DecorationPlan decoration : plan.decorations) {
+                if (placedSegments[decoration.segment()]) {
+                    addDecoration(structureWorldAccess, writer, roadDecorationPlacementPositions, decoration, plan.roadType);
                 }
-                addDecoration(structureWorldAccess, roadDecorationPlacementPositions, averagedPos, segmentIndex, nextPos, prevPos, middlePositions, roadType, random);
-                posAlreadyContainsSegment.add(segmentMiddlePos);
             }
         }
+        writer.finish();
     }
 
-    private void addDecoration(StructureWorldAccess structureWorldAccess, Set<Decoration> roadDecorationPlacementPositions,
-                               BlockPos placePos, int segmentIndex, BlockPos nextPos, BlockPos prevPos, List<BlockPos> middleBlockPositions, int roadType, Random random) {
-        BlockPos surfacePos = placePos.withY(structureWorldAccess.getTopY(Heightmap.Type.WORLD_SURFACE_WG, placePos.getX(), placePos.getZ()));
-        BlockState blockStateAtPos = structureWorldAccess.getBlockState(surfacePos.down());
-        // Water surface handling is now done in placeOnSurface method
+    private static void addDecoration(StructureWorldAccess structureWorldAccess, RoadColumnWriter writer, Set<Decoration> roadDecorationPlacementPositions,
+                                      ChunkPlacementPlan.DecorationPlan decoration, int roadType) {
+        BlockPos placePos = decoration.pos();
         if (ModConfig.placeWaypoints) {
-            if (segmentIndex % 25 == 0) {
+            if (decoration.kind() == ChunkPlacementPlan.DecorationKind.WAYPOINT) {
+                BlockPos surfacePos = placePos.withY(writer.getTopY(placePos.getX(), placePos.getZ()));
                 roadDecorationPlacementPositions.add(new FenceWaypointDecoration(surfacePos, structureWorldAccess));
             }
             return;
         }
-        int dx = nextPos.getX() - prevPos.getX();
-        int dz = nextPos.getZ() - prevPos.getZ();
-        double length = Math.sqrt(dx * dx + dz * dz);
-        int normDx = length != 0 ? (int) Math.round(dx / length) : 0;
-        int normDz = length != 0 ? (int) Math.round(dz / length) : 0;
-        Vec3i directionVector = new Vec3i(normDx, 0, normDz);
-
-        Vec3i orthogonalVector = new Vec3i(-directionVector.getZ(), 0, directionVector.getX());
-        boolean isEnd = segmentIndex != middleBlockPositions.size() - 65;
-        BlockPos shiftedPos;
-        if (segmentIndex == 65 || segmentIndex == middleBlockPositions.size() - 65) {
-            shiftedPos = isEnd ? placePos.add(orthogonalVector.multiply(2)) : placePos.subtract(orthogonalVector.multiply(2));
-            roadDecorationPlacementPositions.add(new DistanceSignDecoration(shiftedPos, orthogonalVector, structureWorldAccess, isEnd, String.valueOf(middleBlockPositions.size())));
+        if (decoration.kind() == ChunkPlacementPlan.DecorationKind.DISTANCE_SIGN) {
+            roadDecorationPlacementPositions.add(new DistanceSignDecoration(placePos, decoration.orthogonal(), structureWorldAccess, decoration.flag(), decoration.text()));
         }
-        else if (segmentIndex % 59 == 0) {
-            boolean leftRoadSide = random.nextBoolean();
-            shiftedPos = leftRoadSide ? placePos.add(orthogonalVector.multiply(2)) : placePos.subtract(orthogonalVector.multiply(2));
-            shiftedPos = shiftedPos.withY(structureWorldAccess.getTopY(Heightmap.Type.WORLD_SURFACE_WG, shiftedPos.getX(), shiftedPos.getZ()));
+        else if (decoration.kind() == ChunkPlacementPlan.DecorationKind.ROADSIDE) {
+            BlockPos shiftedPos = placePos.withY(writer.getTopY(placePos.getX(), placePos.getZ()));
             if (Math.abs(shiftedPos.getY() - placePos.getY()) > 1) {
                 return;
             }
             if (roadType == 0) {
-                roadDecorationPlacementPositions.add(new LamppostDecoration(shiftedPos, orthogonalVector, structureWorldAccess, leftRoadSide));
+                roadDecorationPlacementPositions.add(new LamppostDecoration(shiftedPos, decoration.orthogonal(), structureWorldAccess, decoration.flag()));
             }
             else {
                 roadDecorationPlacementPositions.add(new FenceWaypointDecoration(shiftedPos, structureWorldAccess));
@@ -183,66 +172,52 @@ public class RoadFeature extends Feature<RoadFeatureConfig> {
         }
     }
 
-    private void placeOnSurface(StructureWorldAccess structureWorldAccess, BlockPos placePos, List<BlockState> material, int natural, Random random) {
-        double naturalBlockChance = 0.5;
-        BlockPos surfacePos = placePos;
-        if (natural == 1 || ModConfig.averagingRadius == 0) {
-            surfacePos = structureWorldAccess.getTopPosition(Heightmap.Type.WORLD_SURFACE_WG, placePos);
+    private static void placeOnSurface(StructureWorldAccess structureWorldAccess, RoadColumnWriter writer, int x, int placeY, int z,
+                                       ChunkPlacementPlan plan, int materialIndex, boolean followSurface) {
+        // one heightmap lookup serves both the surface and the water check
+        int topY = writer.getTopY(x, z);
+        int surfaceY = plan.roadType == 1 || followSurface ? topY : placeY;
+        BlockState blockStateAtPos = writer.getBlockState(x, topY - 1, z);
+        // a campfire on the surface was placed on water by an earlier pass
+        if (blockStateAtPos.isOf(Blocks.CAMPFIRE)) {
+            return;
         }
-        BlockPos topPos = structureWorldAccess.getTopPosition(Heightmap.Type.WORLD_SURFACE_WG, surfacePos);
-        BlockState blockStateAtPos = structureWorldAccess.getBlockState(topPos.down());
-        
+
         // Check if this is water surface - place unlit campfire instead of regular road
         if (blockStateAtPos.equals(Blocks.WATER.getDefaultState())) {
-            structureWorldAccess.setBlockState(topPos, Blocks.CAMPFIRE.getDefaultState().with(net.minecraft.state.property.Properties.LIT, false), 3);
+            structureWorldAccess.setBlockState(new BlockPos(x, topY, z), Blocks.CAMPFIRE.getDefaultState().with(net.minecraft.state.property.Properties.LIT, false), 3);
             return;
         }
-        
-        // place road
-        if (natural == 0 || random.nextDouble() < naturalBlockChance) {
-            placeRoadBlock(structureWorldAccess, blockStateAtPos, surfacePos, material, random);
+
+        // place road, natural roads leave planned gaps
+        if (materialIndex >= 0) {
+            placeRoadBlock(writer, blockStateAtPos, x, surfaceY, z, plan.materials.get(materialIndex));
         }
     }
 
-    private void placeRoadBlock(StructureWorldAccess structureWorldAccess, BlockState blockStateAtPos, BlockPos surfacePos, List<BlockState> materials, Random deterministicRandom) {
+    private static void placeRoadBlock(RoadColumnWriter writer, BlockState blockStateAtPos, int x, int surfaceY, int z, BlockState material) {
         // If not water, just place the road
-        if (!placeAllowedCheck(blockStateAtPos.getBlock())
-                || (!structureWorldAccess.getBlockState(surfacePos.down()).isOpaque())
-                && !structureWorldAccess.getBlockState(surfacePos.down(2)).isOpaque()
-                //&& !structureWorldAccess.getBlockState(surfacePos.down(3)).isOpaque())
-                //|| structureWorldAccess.getBlockState(surfacePos.up(3)).isOpaque()
+        if (PlacementRules.isRoadBlocked(blockStateAtPos)
+                || (!writer.getBlockState(x, surfaceY - 1, z).isOpaque())
+                && !writer.getBlockState(x, surfaceY - 2, z).isOpaque()
         ) {
             return;
         }
-        BlockState material = materials.get(deterministicRandom.nextInt(materials.size()));
-        setBlockState(structureWorldAccess, surfacePos.down(), material);
+        writer.setBlockState(x, surfaceY - 1, z, material);
 
         for (int i = 0; i < 3; i++) {
-            BlockState blockStateUp = structureWorldAccess.getBlockState(surfacePos.up(i));
-            if (!blockStateUp.getBlock().equals(Blocks.AIR) && !blockStateUp.isIn(BlockTags.LOGS) && !blockStateUp.isIn(BlockTags.FENCES)) {
-                setBlockState(structureWorldAccess, surfacePos.up(i), Blocks.AIR.getDefaultState());
+            BlockState blockStateUp = writer.getBlockState(x, surfaceY + i, z);
+            if (!PlacementRules.keepsAboveRoad(blockStateUp)) {
+                writer.setBlockState(x, surfaceY + i, z, Blocks.AIR.getDefaultState());
             }
             else {
                 break;
             }
         }
 
-        BlockPos belowPos1 = surfacePos.down(2);
-        BlockState belowState1 = structureWorldAccess.getBlockState(belowPos1);
-
+        BlockState belowState1 = writer.getBlockState(x, surfaceY - 2, z);
         if (belowState1.getBlock().equals(Blocks.GRASS_BLOCK)) {
-            setBlockState(structureWorldAccess, belowPos1, Blocks.DIRT.getDefaultState());
+            writer.setBlockState(x, surfaceY - 2, z, Blocks.DIRT.getDefaultState());
         }
     }
-
-    private boolean placeAllowedCheck (Block blockToCheck) {
-        return !(dontPlaceHere.contains(blockToCheck)
-                || blockToCheck.getDefaultState().isIn(BlockTags.LEAVES)
-                || blockToCheck.getDefaultState().isIn(BlockTags.LOGS)
-                || blockToCheck.getDefaultState().isIn(BlockTags.UNDERWATER_BONEMEALS)
-                || blockToCheck.getDefaultState().isIn(BlockTags.WOODEN_FENCES)
-                || blockToCheck.getDefaultState().isIn(BlockTags.PLANKS)
-        );
-    }
 }
-
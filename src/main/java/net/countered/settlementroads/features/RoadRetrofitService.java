@@ -0,0 +1,298 @@
+package net.countered.settlementroads.features;
+
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.countered.settlementroads.SettlementRoads;
+import net.countered.settlementroads.config.ModConfig;
+import net.countered.settlementroads.features.decoration.Decoration;
+import net.countered.settlementroads.features.decoration.RoadStructures;
+import net.countered.settlementroads.helpers.Records;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtSizeTracker;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.server.world.ChunkTicketType;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.ChunkStatus;
+import net.minecraft.world.dimension.DimensionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Places committed roads into chunks that were generated before the road existed, which {@link RoadFeature}
+ * never sees again. Chunks of a committed road are first checked against the chunk storage off-thread; the ones
+ * that already went through the feature stage are then replayed on the server thread within
+ * {@link ModConfig#retrofitBudgetMillis} per tick. Chunks are only written while they and their neighbours are
+ * loaded; unloaded ones are loaded with a short-lived ticket, at most {@link ModConfig#retrofitChunkLoadsPerSecond}
+ * per second. Both queues are saved with the road data, so the pass resumes after a restart.
+ * Queued chunks remember which roads they are waiting for, and a visit only places those roads; the roads that
+ * were already in the chunk are left alone, so their blocks and decorations are not placed a second time.
+ * The pass only runs when {@link ModConfig#retrofitExistingChunks} is enabled, and it leaves out chunks players
+ * spent more than {@link #MAX_INHABITED_TICKS} in, since the road would cut through whatever was built there.
+ * Server thread only.
+ */
+public class RoadRetrofitService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
+
+    private static final Map<RegistryKey<World>, RoadRetrofitService> SERVICES = new ConcurrentHashMap<>();
+
+    private static final int TICKET_EXPIRY_TICKS = 600;
+    private static final ChunkTicketType<ChunkPos> RETROFIT_TICKET =
+            ChunkTicketType.create(SettlementRoads.MOD_ID + "_retrofit", Comparator.comparingLong(ChunkPos::toLong), TICKET_EXPIRY_TICKS);
+    // radius 1 keeps the chunk and its neighbours loaded at full status, road edges and decorations reach into them
+    private static final int TICKET_RADIUS = 1;
+    private static final int MAX_PROBES_IN_FLIGHT = 16;
+    private static final int MAX_VISITS_PER_TICK = 256;
+    // three minutes of players nearby, chunks that were only passed through stay below this
+    private static final long MAX_INHABITED_TICKS = 3 * 60 * 20;
+
+    private final ServerWorld serverWorld;
+    private final Path file;
+    // road chunks not yet checked against the chunk storage, with the sequence numbers of the roads they wait for
+    private final Long2ObjectLinkedOpenHashMap<LongSet> candidates = new Long2ObjectLinkedOpenHashMap<>();
+    // candidates whose storage check is running, saved together with the candidates
+    private final Long2ObjectMap<LongSet> probing = new Long2ObjectOpenHashMap<>();
+    // chunks known to exist that still need these roads placed
+    private final Long2ObjectLinkedOpenHashMap<LongSet> pending = new Long2ObjectLinkedOpenHashMap<>();
+    // chunks with a load ticket, and the tick it was added
+    private final Long2LongMap requested = new Long2LongOpenHashMap();
+    private double loadTokens;
+    private boolean dirty;
+    private boolean closed;
+
+    private RoadRetrofitService(ServerWorld serverWorld, Path file) {
+        this.serverWorld = serverWorld;
+        this.file = file;
+    }
+
+    public static RoadRetrofitService forWorld(ServerWorld serverWorld) {
+        return SERVICES.computeIfAbsent(serverWorld.getRegistryKey(), key -> {
+            Path worldDirectory = DimensionType.getSaveDirectory(key, serverWorld.getServer().getSavePath(WorldSavePath.ROOT));
+            RoadRetrofitService service = new RoadRetrofitService(serverWorld,
+                    worldDirectory.resolve("data").resolve(SettlementRoads.MOD_ID).resolve("roads").resolve("retrofit.dat"));
+            service.read();
+            return service;
+        });
+    }
+
+    public static RoadRetrofitService remove(ServerWorld serverWorld) {
+        return SERVICES.remove(serverWorld.getRegistryKey());
+    }
+
+    public static void saveAll() {
+        SERVICES.values().forEach(RoadRetrofitService::save);
+    }
+
+    public static void closeAll() {
+        SERVICES.values().forEach(RoadRetrofitService::close);
+        SERVICES.clear();
+    }
+
+    // queues every chunk the road passes through, called when the road is committed with its journal sequence number
+    public void onRoadCommitted(long roadSeq, Records.RoadData roadData) {
+        if (!ModConfig.retrofitExistingChunks) {
+            return;
+        }
+        for (Records.RoadSegmentPlacement segment : roadData.roadSegmentList()) {
+            for (BlockPos pos : segment.positions()) {
+                long key = ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4);
+                // a chunk already further along the queue also places this road when it is visited
+                LongSet roads = pending.get(key);
+                if (roads == null) {
+                    roads = probing.get(key);
+                }
+                if (roads == null) {
+                    roads = candidates.computeIfAbsent(key, k -> new LongOpenHashSet());
+                }
+                if (roads.add(roadSeq)) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    public void tick() {
+        if (!ModConfig.retrofitExistingChunks || ModConfig.retrofitBudgetMillis <= 0 || (candidates.isEmpty() && pending.isEmpty())) {
+            return;
+        }
+        long deadline = System.nanoTime() + ModConfig.retrofitBudgetMillis * 1_000_000L;
+        long tick = serverWorld.getTime();
+        // expired tickets are dropped by the chunk manager, the chunk may be requested again
+        requested.long2LongEntrySet().removeIf(entry -> tick - entry.getLongValue() > TICKET_EXPIRY_TICKS);
+        int loadsPerSecond = ModConfig.retrofitChunkLoadsPerSecond;
+        loadTokens = Math.min(loadTokens + loadsPerSecond / 20.0, Math.max(1, loadsPerSecond));
+
+        startProbes();
+        Set<Decoration> decorations = new HashSet<>();
+        int visits = Math.min(pending.size(), MAX_VISITS_PER_TICK);
+        while (visits-- > 0 && System.nanoTime() < deadline) {
+            long key = pending.firstLongKey();
+            LongSet roads = pending.removeFirst();
+            int chunkX = ChunkPos.getPackedX(key);
+            int chunkZ = ChunkPos.getPackedZ(key);
+            if (isAreaLoaded(chunkX, chunkZ)) {
+                ChunkPos chunkPos = new ChunkPos(chunkX, chunkZ);
+                // 玩家停留过的区块可能有建筑，不再补建道路
+                if (serverWorld.getChunkManager().getWorldChunk(chunkX, chunkZ).getInhabitedTime() > MAX_INHABITED_TICKS) {
+                    LOGGER.debug("Skipping road retrofit of inhabited chunk {}", chunkPos);
+                }
+                else {
+                    RoadFeature.placeChunk(serverWorld, chunkPos, decorations, roads);
+                    RoadStructures.tryPlaceDecorations(decorations);
+                    decorations.clear();
+                }
+                if (requested.containsKey(key)) {
+                    requested.remove(key);
+                    serverWorld.getChunkManager().removeTicket(RETROFIT_TICKET, chunkPos, TICKET_RADIUS, chunkPos);
+                }
+                dirty = true;
+                continue;
+            }
+            if (loadsPerSecond > 0 && loadTokens >= 1 && !requested.containsKey(key)) {
+                ChunkPos chunkPos = new ChunkPos(chunkX, chunkZ);
+                serverWorld.getChunkManager().addTicket(RETROFIT_TICKET, chunkPos, TICKET_RADIUS, chunkPos);
+                requested.put(key, tick);
+                loadTokens--;
+            }
+            // 未加载的区块移到队尾，等加载后再处理
+            pending.putAndMoveToLast(key, roads);
+        }
+    }
+
+    // checks queued chunks against the chunk storage, only chunks that already had their features placed need a retrofit
+    private void startProbes() {
+        while (probing.size() < MAX_PROBES_IN_FLIGHT && !candidates.isEmpty()) {
+            long key = candidates.firstLongKey();
+            LongSet roads = candidates.removeFirst();
+            int chunkX = ChunkPos.getPackedX(key);
+            int chunkZ = ChunkPos.getPackedZ(key);
+            if (serverWorld.getChunkManager().getChunk(chunkX, chunkZ, ChunkStatus.FEATURES, false) != null) {
+                pending.put(key, roads);
+                dirty = true;
+                continue;
+            }
+            probing.put(key, roads);
+            serverWorld.getChunkManager().chunkLoadingManager.getNbt(new ChunkPos(chunkX, chunkZ))
+                    .whenCompleteAsync((nbt, throwable) -> onProbed(key, nbt, throwable), serverWorld.getServer());
+        }
+    }
+
+    private void onProbed(long key, Optional<NbtCompound> nbt, Throwable throwable) {
+        if (closed) {
+            return;
+        }
+        LongSet roads = probing.remove(key);
+        dirty = true;
+        if (throwable != null) {
+            LOGGER.warn("Failed to read chunk {} for road retrofit", new ChunkPos(key), throwable);
+            return;
+        }
+        // a chunk that is missing or still before the feature stage gets the road from RoadFeature
+        if (nbt.isPresent() && ChunkStatus.byId(nbt.get().getString("Status")).isAtLeast(ChunkStatus.FEATURES)) {
+            pending.put(key, roads);
+        }
+    }
+
+    private boolean isAreaLoaded(int chunkX, int chunkZ) {
+        for (int dx = -TICKET_RADIUS; dx <= TICKET_RADIUS; dx++) {
+            for (int dz = -TICKET_RADIUS; dz <= TICKET_RADIUS; dz++) {
+                if (serverWorld.getChunkManager().getWorldChunk(chunkX + dx, chunkZ + dz) == null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public int getPendingCount() {
+        return candidates.size() + probing.size() + pending.size();
+    }
+
+    public void close() {
+        save();
+        closed = true;
+        for (long key : requested.keySet()) {
+            ChunkPos chunkPos = new ChunkPos(key);
+            serverWorld.getChunkManager().removeTicket(RETROFIT_TICKET, chunkPos, TICKET_RADIUS, chunkPos);
+        }
+        requested.clear();
+    }
+
+    private void read() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            NbtCompound nbt = NbtIo.readCompressed(file, NbtSizeTracker.ofUnlimitedBytes());
+            readQueue(nbt, "candidates", candidates);
+            readQueue(nbt, "pending", pending);
+            LOGGER.debug("Resuming road retrofit with {} chunks", getPendingCount());
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read road retrofit progress {}", file, e);
+        }
+    }
+
+    // one (chunk, road) pair per index of the two arrays
+    private static void readQueue(NbtCompound nbt, String name, Long2ObjectLinkedOpenHashMap<LongSet> queue) {
+        long[] chunks = nbt.getLongArray(name + "_chunks");
+        long[] roads = nbt.getLongArray(name + "_roads");
+        for (int i = 0; i < Math.min(chunks.length, roads.length); i++) {
+            queue.computeIfAbsent(chunks[i], k -> new LongOpenHashSet()).add(roads[i]);
+        }
+    }
+
+    private static void writeQueue(NbtCompound nbt, String name, Long2ObjectMap<LongSet> queue) {
+        LongArrayList chunks = new LongArrayList();
+        LongArrayList roads = new LongArrayList();
+        for (Long2ObjectMap.Entry<LongSet> entry : queue.long2ObjectEntrySet()) {
+            for (long roadSeq : entry.getValue()) {
+                chunks.add(entry.getLongKey());
+                roads.add(roadSeq);
+            }
+        }
+        nbt.putLongArray(name + "_chunks", chunks.toLongArray());
+        nbt.putLongArray(name + "_roads", roads.toLongArray());
+    }
+
+    private void save() {
+        if (!dirty || closed) {
+            return;
+        }
+        NbtCompound nbt = new NbtCompound();
+        Long2ObjectLinkedOpenHashMap<LongSet> unchecked = new Long2ObjectLinkedOpenHashMap<>(probing);
+        unchecked.putAll(candidates);
+        writeQueue(nbt, "candidates", unchecked);
+        writeQueue(nbt, "pending", pending);
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            NbtIo.writeCompressed(nbt, temp);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.error("Failed to write road retrofit progress {}", file, e);
+        }
+    }
+}
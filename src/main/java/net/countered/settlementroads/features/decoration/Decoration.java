@@ -1,9 +1,8 @@
 package net.countered.settlementroads.features.decoration;
 
-import net.countered.settlementroads.features.RoadFeature;
+import net.countered.settlementroads.features.PlacementRules;
 import net.minecraft.block.BlockState;
-import net.minecraft.block.Blocks;
-import net.minecraft.registry.tag.BlockTags;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.Heightmap;
 import net.minecraft.world.StructureWorldAccess;
@@ -21,14 +20,13 @@ public abstract class Decoration {
 
     protected final boolean placeAllowed() {
         BlockPos placePos = getPos();
-        BlockPos surfacePos = placePos.withY(world.getTopY(Heightmap.Type.WORLD_SURFACE_WG, placePos.getX(), placePos.getZ()));
+        // decorations placed into existing chunks get the server world, which has no up to date worldgen heightmap
+        Heightmap.Type surfaceType = world instanceof ServerWorld ? Heightmap.Type.WORLD_SURFACE : Heightmap.Type.WORLD_SURFACE_WG;
+        BlockPos surfacePos = placePos.withY(world.getTopY(surfaceType, placePos.getX(), placePos.getZ()));
         this.placePos = surfacePos;
         BlockState blockStateBelow = world.getBlockState(surfacePos.down());
 
-        boolean belowInvalid = blockStateBelow.isOf(Blocks.WATER)
-                || blockStateBelow.isOf(Blocks.LAVA)
-                || blockStateBelow.isIn(BlockTags.LOGS)
-                || RoadFeature.dontPlaceHere.contains(blockStateBelow.getBlock());
+        boolean belowInvalid = PlacementRules.isDecorationBlocked(blockStateBelow);
 
         if (belowInvalid) {
             return false;
@@ -0,0 +1,277 @@
+package net.countered.settlementroads.features.roadlogic;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Grid A* over packed (x, z) keys. Nodes live in parallel primitive arrays and the open set is an
+ * indexed binary heap with decrease-key, so a search allocates nothing once the arrays have grown.
+ * A search can be advanced in slices, and instances are pooled through {@link #acquire()} and {@link #release()}
+ * so sliced jobs can move between worker threads.
+ */
+final class AStarSearch {
+
+    interface CostModel {
+        int sampleHeight(int x, int z);
+
+        // cost of stepping from a node at fromY onto (x, y, z), or a negative value if the step is not allowed
+        double edgeCost(int fromY, int x, int y, int z, boolean diagonal);
+
+        double heuristic(int x, int z, int goalX, int goalZ);
+    }
+
+    static final int IN_PROGRESS = -1;
+    static final int NOT_FOUND = -2;
+
+    private static final Queue<AStarSearch> POOL = new ConcurrentLinkedQueue<>();
+
+    private static final int[] OFFSET_X = {1, -1, 0, 0, 1, 1, -1, -1};
+    private static final int[] OFFSET_Z = {0, 0, 1, -1, 1, -1, 1, -1};
+
+    private static final int NOT_QUEUED = -1;
+    private static final int CLOSED = -2;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // struct-of-arrays node storage, indexed by node id
+    private int[] nodeX = new int[INITIAL_CAPACITY];
+    private int[] nodeY = new int[INITIAL_CAPACITY];
+    private int[] nodeZ = new int[INITIAL_CAPACITY];
+    private int[] parent = new int[INITIAL_CAPACITY];
+    private double[] gScore = new double[INITIAL_CAPACITY];
+    private double[] fScore = new double[INITIAL_CAPACITY];
+    private int[] heapPos = new int[INITIAL_CAPACITY];
+    private int nodeCount;
+
+    // binary min-heap of node ids ordered by fScore
+    private int[] heap = new int[INITIAL_CAPACITY];
+    private int heapSize;
+
+    private final Long2IntOpenHashMap nodeIds = new Long2IntOpenHashMap(INITIAL_CAPACITY);
+
+    // state of the current search, kept between expand() slices
+    private CostModel costModel;
+    private int goalX, goalZ, step, stepsLeft;
+    private int minX, minZ, maxX, maxZ;
+    private double initialHeuristic, bestHeuristic;
+
+    private AStarSearch() {
+        nodeIds.defaultReturnValue(-1);
+    }
+
+    static AStarSearch acquire() {
+        AStarSearch search = POOL.poll();
+        return search != null ? search : new AStarSearch();
+    }
+
+    void release() {
+        costModel = null;
+        POOL.offer(this);
+    }
+
+    static long packXZ(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Runs a search on a grid of the given step size to completion and returns the id of the node that reached
+     * the goal, or {@link #NOT_FOUND} if the open set or the step budget ran out.
+     */
+    int search(int startX, int startY, int startZ, int goalX, int goalZ, int step, int maxSteps, CostModel costModel) {
+        start(startX, startY, startZ, goalX, goalZ, step, maxSteps, costModel);
+        return expand(Integer.MAX_VALUE);
+    }
+
+    void start(int startX, int startY, int startZ, int goalX, int goalZ, int step, int maxSteps, CostModel costModel) {
+        start(startX, startY, startZ, goalX, goalZ, step, maxSteps, costModel,
+                Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Prepares a search that never expands nodes outside the given inclusive x/z bounds.
+     * The search then advances through {@link #expand(int)}, keeping its open set between calls.
+     */
+    void start(int startX, int startY, int startZ, int goalX, int goalZ, int step, int maxSteps, CostModel costModel,
+               int minX, int minZ, int maxX, int maxZ) {
+        reset();
+        this.goalX = goalX;
+        this.goalZ = goalZ;
+        this.step = step;
+        this.stepsLeft = maxSteps;
+        this.costModel = costModel;
+        this.minX = minX;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxZ = maxZ;
+        this.initialHeuristic = costModel.heuristic(startX, startZ, goalX, goalZ);
+        this.bestHeuristic = initialHeuristic;
+        int startNode = addNode(startX, startY, startZ, -1, 0.0, initialHeuristic);
+        nodeIds.put(packXZ(startX, startZ), startNode);
+        heapPush(startNode);
+    }
+
+    /**
+     * Expands at most maxExpansions nodes. Returns the id of the node that reached the goal,
+     * {@link #IN_PROGRESS} if the slice ended first, or {@link #NOT_FOUND} once the open set or the step budget ran out.
+     */
+    int expand(int maxExpansions) {
+        while (maxExpansions-- > 0) {
+            if (heapSize == 0 || stepsLeft <= 0) {
+                return NOT_FOUND;
+            }
+            stepsLeft--;
+            int current = heapPop();
+            heapPos[current] = CLOSED;
+            int currentX = nodeX[current];
+            int currentY = nodeY[current];
+            int currentZ = nodeZ[current];
+
+            if (Math.abs(currentX - goalX) + Math.abs(currentZ - goalZ) < step * 2) {
+                return current;
+            }
+            bestHeuristic = Math.min(bestHeuristic, fScore[current] - gScore[current]);
+
+            for (int direction = 0; direction < OFFSET_X.length; direction++) {
+                int x = currentX + OFFSET_X[direction] * step;
+                int z = currentZ + OFFSET_Z[direction] * step;
+                if (x < minX || x > maxX || z < minZ || z > maxZ) continue;
+                long key = packXZ(x, z);
+                int neighbor = nodeIds.get(key);
+                if (neighbor >= 0 && heapPos[neighbor] == CLOSED) continue;
+
+                int y = costModel.sampleHeight(x, z);
+                double stepCost = costModel.edgeCost(currentY, x, y, z, direction >= 4);
+                if (stepCost < 0) continue;
+                double tentativeG = gScore[current] + stepCost;
+
+                if (neighbor < 0) {
+                    neighbor = addNode(x, y, z, current, tentativeG, tentativeG + costModel.heuristic(x, z, goalX, goalZ));
+                    nodeIds.put(key, neighbor);
+                    heapPush(neighbor);
+                }
+                else if (tentativeG < gScore[neighbor]) {
+                    fScore[neighbor] = tentativeG + (fScore[neighbor] - gScore[neighbor]);
+                    gScore[neighbor] = tentativeG;
+                    parent[neighbor] = current;
+                    siftUp(heapPos[neighbor]);
+                }
+            }
+        }
+        return IN_PROGRESS;
+    }
+
+    // true if the last NOT_FOUND came from the step budget rather than an exhausted open set
+    boolean isBudgetExhausted() {
+        return stepsLeft <= 0;
+    }
+
+    // share of the start heuristic already covered by the closest expanded node, 0..1
+    float getProgress() {
+        if (initialHeuristic <= 0) {
+            return 1f;
+        }
+        return (float) Math.max(0, Math.min(1, 1 - bestHeuristic / initialHeuristic));
+    }
+
+    int getX(int node) {
+        return nodeX[node];
+    }
+
+    int getY(int node) {
+        return nodeY[node];
+    }
+
+    int getZ(int node) {
+        return nodeZ[node];
+    }
+
+    int getParent(int node) {
+        return parent[node];
+    }
+
+    private void reset() {
+        nodeCount = 0;
+        heapSize = 0;
+        nodeIds.clear();
+    }
+
+    private int addNode(int x, int y, int z, int parentNode, double g, double f) {
+        if (nodeCount == nodeX.length) {
+            grow();
+        }
+        int node = nodeCount++;
+        nodeX[node] = x;
+        nodeY[node] = y;
+        nodeZ[node] = z;
+        parent[node] = parentNode;
+        gScore[node] = g;
+        fScore[node] = f;
+        heapPos[node] = NOT_QUEUED;
+        return node;
+    }
+
+    private void grow() {
+        int capacity = nodeX.length * 2;
+        nodeX = Arrays.copyOf(nodeX, capacity);
+        nodeY = Arrays.copyOf(nodeY, capacity);
+        nodeZ = Arrays.copyOf(nodeZ, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        gScore = Arrays.copyOf(gScore, capacity);
+        fScore = Arrays.copyOf(fScore, capacity);
+        heapPos = Arrays.copyOf(heapPos, capacity);
+        heap = Arrays.copyOf(heap, capacity);
+    }
+
+    private void heapPush(int node) {
+        heap[heapSize] = node;
+        heapPos[node] = heapSize;
+        siftUp(heapSize++);
+    }
+
+    private int heapPop() {
+        int top = heap[0];
+        int last = heap[--heapSize];
+        if (heapSize > 0) {
+            heap[0] = last;
+            heapPos[last] = 0;
+            siftDown(0);
+        }
+        return top;
+    }
+
+    private void siftUp(int index) {
+        int node = heap[index];
+        double f = fScore[node];
+        while (index > 0) {
+            int parentIndex = (index - 1) >>> 1;
+            int parentNode = heap[parentIndex];
+            if (fScore[parentNode] <= f) break;
+            heap[index] = parentNode;
+            heapPos[parentNode] = index;
+            index = parentIndex;
+        }
+        heap[index] = node;
+        heapPos[node] = index;
+    }
+
+    private void siftDown(int index) {
+        int node = heap[index];
+        double f = fScore[node];
+        int half = heapSize >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < heapSize && fScore[heap[right]] < fScore[heap[child]]) {
+                child = right;
+            }
+            if (f <= fScore[heap[child]]) break;
+            heap[index] = heap[child];
+            heapPos[heap[index]] = index;
+            index = child;
+        }
+        heap[index] = node;
+        heapPos[node] = index;
+    }
+}
@@ -0,0 +1,74 @@
+package net.countered.settlementroads.features.roadlogic;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.registry.entry.RegistryEntry;
+import net.minecraft.registry.tag.BiomeTags;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.world.World;
+import net.minecraft.world.biome.Biome;
+import net.minecraft.world.biome.source.BiomeCoords;
+import net.minecraft.world.biome.source.BiomeSource;
+import net.minecraft.world.biome.source.util.MultiNoiseUtil;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Classifies columns as river/ocean for the road cost by sampling the generator's biome source at quart
+ * resolution, bypassing world chunk access. Each quart cell's result is cached as one packed long in a lossy
+ * direct-mapped table, and each biome's tag membership is resolved only once.
+ * Results are keyed by quart x/z only; the quart y of the first lookup decides a cell's classification.
+ */
+public class BiomeCostSampler {
+
+    private static final Map<RegistryKey<World>, BiomeCostSampler> SAMPLERS = new ConcurrentHashMap<>();
+
+    private static final int CACHE_BITS = 18;
+    private static final int CACHE_MASK = (1 << CACHE_BITS) - 1;
+    private static final int COORD_BITS = 28;
+    private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+    private static final long DRY = 1;
+    private static final long WATER = 2;
+
+    private final BiomeSource biomeSource;
+    private final MultiNoiseUtil.MultiNoiseSampler noiseSampler;
+    private final Map<RegistryEntry<Biome>, Boolean> waterBiomes = new ConcurrentHashMap<>();
+    // entries are (packed quart x/z << 2) | classification, 0 means empty
+    private final AtomicLongArray cells = new AtomicLongArray(1 << CACHE_BITS);
+
+    private BiomeCostSampler(ServerWorld serverWorld) {
+        this.biomeSource = serverWorld.getChunkManager().getChunkGenerator().getBiomeSource();
+        this.noiseSampler = serverWorld.getChunkManager().getNoiseConfig().getMultiNoiseSampler();
+    }
+
+    public static BiomeCostSampler forWorld(ServerWorld serverWorld) {
+        return SAMPLERS.computeIfAbsent(serverWorld.getRegistryKey(), key -> new BiomeCostSampler(serverWorld));
+    }
+
+    public static void remove(ServerWorld serverWorld) {
+        SAMPLERS.remove(serverWorld.getRegistryKey());
+    }
+
+    public static void clear() {
+        SAMPLERS.clear();
+    }
+
+    public boolean isWater(int x, int y, int z) {
+        int quartX = BiomeCoords.fromBlock(x);
+        int quartZ = BiomeCoords.fromBlock(z);
+        long cellKey = ((quartX & COORD_MASK) << COORD_BITS) | (quartZ & COORD_MASK);
+        int slot = (int) (HashCommon.mix(cellKey) & CACHE_MASK);
+        long entry = cells.get(slot);
+        if (entry != 0 && (entry >>> 2) == cellKey) {
+            return (entry & 3) == WATER;
+        }
+        RegistryEntry<Biome> biome = biomeSource.getBiome(quartX, BiomeCoords.fromBlock(y), quartZ, noiseSampler);
+        boolean water = waterBiomes.computeIfAbsent(biome, entryToCheck -> entryToCheck.isIn(BiomeTags.IS_RIVER)
+                || entryToCheck.isIn(BiomeTags.IS_OCEAN)
+                || entryToCheck.isIn(BiomeTags.IS_DEEP_OCEAN));
+        cells.set(slot, (cellKey << 2) | (water ? WATER : DRY));
+        return water;
+    }
+}
@@ -0,0 +1,169 @@
+package net.countered.settlementroads.features.roadlogic;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.IntList;
+import net.countered.settlementroads.helpers.Records;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.Vec3i;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * What one road piece places in one chunk, precomputed when the piece is indexed so chunk generation only replays
+ * arrays. Columns are packed relative to the chunk origin together with their target height, and each column
+ * carries the index of its material, or -1 where a natural road leaves a gap. Decorations are kept as descriptors
+ * that still read the generated surface when they are placed.
+ */
+public final class ChunkPlacementPlan {
+
+    // segments this close to either structure are left out
+    private static final int STRUCTURE_MARGIN = 60;
+    private static final int SIGN_OFFSET = 65;
+    private static final int WAYPOINT_INTERVAL = 25;
+    private static final int ROADSIDE_INTERVAL = 59;
+
+    private static final int COORD_OFFSET = 128;
+    private static final int Y_OFFSET = 4096;
+
+    public enum DecorationKind {
+        WAYPOINT,       // 仅在路标模式下放置
+        DISTANCE_SIGN,
+        ROADSIDE        // 路灯或栅栏路标
+    }
+
+    /**
+     * A decoration of segment {@code segment} of the run. For roadside decorations flag tells the left side,
+     * for distance signs whether the sign stands at the road's end.
+     */
+    public record DecorationPlan(int segment, DecorationKind kind, BlockPos pos, Vec3i orthogonal, boolean flag, String text) {}
+
+    // journal sequence number of the road the plan belongs to
+    public final long roadSeq;
+    public final int roadType;
+    public final List<BlockState> materials;
+    // one packed middle position per segment, used to skip segments another road already placed
+    public final int[] middles;
+    // exclusive end of each segment's columns
+    public final int[] columnEnds;
+    public final int[] columns;
+    public final byte[] materialIndex;
+    public final DecorationPlan[] decorations;
+
+    private ChunkPlacementPlan(long roadSeq, int roadType, List<BlockState> materials, int[] middles, int[] columnEnds,
+                               int[] columns, byte[] materialIndex, DecorationPlan[] decorations) {
+        this.roadSeq = roadSeq;
+        this.roadType = roadType;
+        this.materials = materials;
+        this.middles = middles;
+        this.columnEnds = columnEnds;
+        this.columns = columns;
+        this.materialIndex = materialIndex;
+        this.decorations = decorations;
+    }
+
+    public int segmentCount() {
+        return middles.length;
+    }
+
+    /**
+     * Plans the given segments of a piece for the chunk. Segments inside the structure margin are dropped;
+     * the caller guarantees that every index has two segments before and after it in the piece.
+     */
+    static ChunkPlacementPlan build(Records.RoadPiece piece, ChunkPos chunkPos, IntList segmentIndices) {
+        Records.RoadData road = piece.road();
+        List<Records.RoadSegmentPlacement> segmentList = road.roadSegmentList();
+        int materialCount = road.materials().size();
+        boolean natural = road.roadType() == 1;
+        int baseX = chunkPos.getStartX();
+        int baseZ = chunkPos.getStartZ();
+        int segmentCount = piece.totalSegments();
+
+        int columnCount = 0;
+        for (int s = 0; s < segmentIndices.size(); s++) {
+            columnCount += segmentList.get(segmentIndices.getInt(s)).positions().size();
+        }
+        int[] middles = new int[segmentIndices.size()];
+        int[] columnEnds = new int[segmentIndices.size()];
+        int[] columns = new int[columnCount];
+        byte[] materialIndex = new byte[columnCount];
+        List<DecorationPlan> decorations = new ArrayList<>();
+        int planned = 0;
+        int column = 0;
+
+        for (int s = 0; s < segmentIndices.size(); s++) {
+            int i = segmentIndices.getInt(s);
+            int segmentIndex = piece.firstIndex() + i - 1;
+            if (segmentIndex < STRUCTURE_MARGIN || segmentIndex > segmentCount - STRUCTURE_MARGIN) continue;
+            Records.RoadSegmentPlacement segment = segmentList.get(i);
+            BlockPos middlePos = segment.middlePos();
+            int targetY = middlePos.getY();
+            for (BlockPos widthPos : segment.positions()) {
+                long hash = HashCommon.mix(BlockPos.asLong(widthPos.getX(), 0, widthPos.getZ()));
+                columns[column] = pack(widthPos.getX() - baseX, targetY, widthPos.getZ() - baseZ);
+                // 自然道路约一半的方块留空
+                materialIndex[column] = natural && (hash & 1) == 0 ? -1 : (byte) Math.floorMod(hash >> 1, materialCount);
+                column++;
+            }
+            middles[planned] = pack(middlePos.getX() - baseX, targetY, middlePos.getZ() - baseZ);
+            columnEnds[planned] = column;
+            planDecorations(decorations, planned, middlePos, segmentIndex, segmentCount,
+                    segmentList.get(i - 2).middlePos(), segmentList.get(i + 2).middlePos());
+            planned++;
+        }
+        if (planned == 0) {
+            return null;
+        }
+        if (planned < middles.length) {
+            middles = Arrays.copyOf(middles, planned);
+            columnEnds = Arrays.copyOf(columnEnds, planned);
+            columns = Arrays.copyOf(columns, column);
+            materialIndex = Arrays.copyOf(materialIndex, column);
+        }
+        return new ChunkPlacementPlan(piece.roadSeq(), road.roadType(), road.materials(), middles, columnEnds, columns, materialIndex,
+                decorations.toArray(new DecorationPlan[0]));
+    }
+
+    private static void planDecorations(List<DecorationPlan> decorations, int segment, BlockPos placePos,
+                                        int segmentIndex, int segmentCount, BlockPos prevPos, BlockPos nextPos) {
+        if (segmentIndex % WAYPOINT_INTERVAL == 0) {
+            decorations.add(new DecorationPlan(segment, DecorationKind.WAYPOINT, placePos, Vec3i.ZERO, false, null));
+        }
+        int dx = nextPos.getX() - prevPos.getX();
+        int dz = nextPos.getZ() - prevPos.getZ();
+        double length = Math.sqrt(dx * dx + dz * dz);
+        int normDx = length != 0 ? (int) Math.round(dx / length) : 0;
+        int normDz = length != 0 ? (int) Math.round(dz / length) : 0;
+        Vec3i orthogonalVector = new Vec3i(-normDz, 0, normDx);
+
+        if (segmentIndex == SIGN_OFFSET || segmentIndex == segmentCount - SIGN_OFFSET) {
+            boolean isEnd = segmentIndex != segmentCount - SIGN_OFFSET;
+            BlockPos shiftedPos = isEnd ? placePos.add(orthogonalVector.multiply(2)) : placePos.subtract(orthogonalVector.multiply(2));
+            decorations.add(new DecorationPlan(segment, DecorationKind.DISTANCE_SIGN, shiftedPos, orthogonalVector, isEnd, String.valueOf(segmentCount)));
+        }
+        else if (segmentIndex % ROADSIDE_INTERVAL == 0) {
+            boolean leftRoadSide = (HashCommon.mix(placePos.asLong()) & 1) == 0;
+            BlockPos shiftedPos = leftRoadSide ? placePos.add(orthogonalVector.multiply(2)) : placePos.subtract(orthogonalVector.multiply(2));
+            decorations.add(new DecorationPlan(segment, DecorationKind.ROADSIDE, shiftedPos, orthogonalVector, leftRoadSide, null));
+        }
+    }
+
+    static int pack(int localX, int y, int localZ) {
+        return ((y + Y_OFFSET) << 16) | ((localZ + COORD_OFFSET) << 8) | (localX + COORD_OFFSET);
+    }
+
+    public static int unpackX(int packed) {
+        return (packed & 0xFF) - COORD_OFFSET;
+    }
+
+    public static int unpackZ(int packed) {
+        return ((packed >>> 8) & 0xFF) - COORD_OFFSET;
+    }
+
+    public static int unpackY(int packed) {
+        return (packed >>> 16) - Y_OFFSET;
+    }
+}
@@ -0,0 +1,6 @@
+package net.countered.settlementroads.features.roadlogic;
+
+// Anything that can answer generator surface heights for a column
+interface HeightSource {
+    int getHeight(int x, int z);
+}
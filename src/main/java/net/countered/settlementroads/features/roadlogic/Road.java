@@ -3,13 +3,12 @@ package net.countered.settlementroads.features.roadlogic;
 import net.countered.settlementroads.config.ModConfig;
 import net.countered.settlementroads.features.config.RoadFeatureConfig;
 import net.countered.settlementroads.helpers.Records;
-import net.countered.settlementroads.persistence.attachments.WorldDataAttachment;
+import net.countered.settlementroads.persistence.RoadCommitQueue;
 import net.minecraft.block.BlockState;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.random.Random;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class Road {
@@ -18,6 +17,12 @@ public class Road {
     Records.StructureConnection structureConnection;
     RoadFeatureConfig context;
 
+    private RoadSearchJob searchJob;
+    private volatile boolean cancelled;
+    private int width;
+    private int type;
+    private List<BlockState> material;
+
     public Road(ServerWorld serverWorld, Records.StructureConnection structureConnection, RoadFeatureConfig config) {
         this.serverWorld = serverWorld;
         this.structureConnection = structureConnection;
@@ -25,55 +30,114 @@ public class Road {
     }
 
     public void generateRoad(int maxSteps){
+        while (!runSlice(maxSteps, Integer.MAX_VALUE, Long.MAX_VALUE));
+    }
+
+    /**
+     * Advances the road search by one bounded slice, starting it on the first call.
+     * Returns true once the road has been committed, has failed or was cancelled.
+     */
+    public boolean runSlice(int maxSteps, int maxExpansions, long maxNanos) {
+        if (searchJob == null && !begin(maxSteps)) {
+            return true;
+        }
+        RoadSearchJob.State state = searchJob.step(maxExpansions, maxNanos);
+        switch (state) {
+            case RUNNING -> {
+                return false;
+            }
+            case FOUND -> commitRoad(searchJob.getResult());
+            // 任务被取消，恢复为"计划中"以便之后重新生成
+            case CANCELLED -> updateConnectionStatus(Records.ConnectionStatus.PLANNED);
+            case FAILED -> fail(searchJob.getFailureReason(), searchJob.getProgress());
+        }
+        return true;
+    }
+
+    public void cancel() {
+        cancelled = true;
+        if (searchJob != null) {
+            searchJob.cancel();
+        }
+    }
+
+    /**
+     * Gives up on a road whose next slice could not be scheduled. A search that already marked the connection
+     * as generating puts it back to planned, like a cancelled slice does.
+     */
+    public void abort() {
+        cancel();
+        if (searchJob != null) {
+            updateConnectionStatus(Records.ConnectionStatus.PLANNED);
+        }
+    }
+
+    /**
+     * Gives up on a road whose slice threw. The connection is reported as failed so the retry policy decides
+     * when it is searched again, instead of staying marked as generating.
+     */
+    public void abortWithError() {
+        cancel();
+        fail(Records.FailureReason.OTHER, getProgress());
+    }
+
+    public Records.StructureConnection getConnection() {
+        return structureConnection;
+    }
+
+    public float getProgress() {
+        return searchJob != null ? searchJob.getProgress() : 0f;
+    }
+
+    private boolean begin(int maxSteps) {
+        if (cancelled) {
+            return false;
+        }
         // 更新连接状态为"生成中"
         updateConnectionStatus(Records.ConnectionStatus.GENERATING);
-        
+
         Random random = Random.create();
-        int width = getRandomWidth(random, context);
-        int type = allowedRoadTypes(random);
+        width = getRandomWidth(random, context);
+        type = allowedRoadTypes(random);
         // if all road types are disabled in config
         if (type == -1) {
-            updateConnectionStatus(Records.ConnectionStatus.FAILED);
-            return;
+            fail(Records.FailureReason.OTHER, 0f);
+            return false;
         }
-        List<BlockState> material = (type == 1) ? getRandomNaturalRoadMaterials(random, context) : getRandomArtificialRoadMaterials(random, context);
+        material = (type == 1) ? getRandomNaturalRoadMaterials(random, context) : getRandomArtificialRoadMaterials(random, context);
 
         BlockPos start = structureConnection.from();
         BlockPos end = structureConnection.to();
 
-        List<Records.RoadSegmentPlacement> roadSegmentPlacementList = RoadPathCalculator.calculateAStarRoadPath(start, end, width, serverWorld, maxSteps);
+        searchJob = RoadPathCalculator.createSearchJob(start, end, width, serverWorld, maxSteps);
+        if (cancelled) {
+            searchJob.cancel();
+        }
+        return true;
+    }
 
+    private void commitRoad(List<Records.RoadSegmentPlacement> roadSegmentPlacementList) {
         // 检查是否生成失败（路径为空）
         if (roadSegmentPlacementList.isEmpty()) {
-            updateConnectionStatus(Records.ConnectionStatus.FAILED);
+            fail(Records.FailureReason.OTHER, 1f);
             return;
         }
 
-        List<Records.RoadData> roadDataList = new ArrayList<>(serverWorld.getAttachedOrCreate(WorldDataAttachment.ROAD_DATA_LIST, ArrayList::new));
-        roadDataList.add(new Records.RoadData(width, type, material, roadSegmentPlacementList));
-
-        serverWorld.setAttached(WorldDataAttachment.ROAD_DATA_LIST, roadDataList);
+        // 在工作线程上一次性算出每段的路面高度，区块生成时直接使用
+        List<Records.RoadSegmentPlacement> plannedSegments = RoadPathCalculator.planHeights(serverWorld, roadSegmentPlacementList);
+        Records.RoadData roadData = new Records.RoadData(width, type, material, plannedSegments);
+        RoadCommitQueue.submitRoad(serverWorld, roadData);
         
         // 道路生成完成，更新状态为"已完成"
         updateConnectionStatus(Records.ConnectionStatus.COMPLETED);
     }
     
     private void updateConnectionStatus(Records.ConnectionStatus newStatus) {
-        List<Records.StructureConnection> connections = new ArrayList<>(
-                serverWorld.getAttachedOrCreate(WorldDataAttachment.CONNECTED_STRUCTURES, ArrayList::new)
-        );
-        
-        // 查找并更新对应的连接
-        for (int i = 0; i < connections.size(); i++) {
-            Records.StructureConnection conn = connections.get(i);
-            if ((conn.from().equals(structureConnection.from()) && conn.to().equals(structureConnection.to())) ||
-                (conn.from().equals(structureConnection.to()) && conn.to().equals(structureConnection.from()))) {
-                // 更新状态
-                connections.set(i, new Records.StructureConnection(conn.from(), conn.to(), newStatus));
-                serverWorld.setAttached(WorldDataAttachment.CONNECTED_STRUCTURES, connections);
-                break;
-            }
-        }
+        RoadCommitQueue.submitStatus(serverWorld, structureConnection, newStatus);
+    }
+
+    private void fail(Records.FailureReason reason, float progress) {
+        RoadCommitQueue.submitFailure(serverWorld, structureConnection, reason != null ? reason : Records.FailureReason.OTHER, progress);
     }
 
     private static int allowedRoadTypes(Random deterministicRandom) {
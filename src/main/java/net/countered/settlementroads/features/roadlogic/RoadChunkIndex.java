@@ -0,0 +1,56 @@
+package net.countered.settlementroads.features.roadlogic;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.countered.settlementroads.helpers.Records;
+import net.countered.settlementroads.persistence.RoadRegionStore;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps chunk positions to the placement plans of the road segments whose middle position lies in that chunk,
+ * so chunk generation only replays its own plans instead of visiting every committed road.
+ * There is one index per loaded road region, covering the pieces stored in that region.
+ */
+public class RoadChunkIndex {
+
+    private static final ChunkPlacementPlan[] EMPTY = new ChunkPlacementPlan[0];
+
+    private final int regionX, regionZ;
+    // chunk long -> plans in road commit order
+    private final Map<Long, ChunkPlacementPlan[]> plansByChunk = new ConcurrentHashMap<>();
+
+    public RoadChunkIndex(int regionX, int regionZ) {
+        this.regionX = regionX;
+        this.regionZ = regionZ;
+    }
+
+    public synchronized void addPiece(Records.RoadPiece piece) {
+        List<Records.RoadSegmentPlacement> segmentList = piece.road().roadSegmentList();
+        Map<Long, IntArrayList> newSegments = new LinkedHashMap<>();
+        // leaves room for the prev/next lookups of the decoration direction
+        int from = Math.max(2, 2 - piece.firstIndex());
+        int to = Math.min(segmentList.size(), piece.totalSegments() - piece.firstIndex()) - 2;
+        for (int i = from; i < to; i++) {
+            BlockPos middlePos = segmentList.get(i).middlePos();
+            if (RoadRegionStore.regionCoord(middlePos.getX()) != regionX || RoadRegionStore.regionCoord(middlePos.getZ()) != regionZ) continue;
+            long chunkKey = ChunkPos.toLong(middlePos.getX() >> 4, middlePos.getZ() >> 4);
+            newSegments.computeIfAbsent(chunkKey, k -> new IntArrayList()).add(i);
+        }
+        for (Map.Entry<Long, IntArrayList> entry : newSegments.entrySet()) {
+            ChunkPlacementPlan plan = ChunkPlacementPlan.build(piece, new ChunkPos(entry.getKey()), entry.getValue());
+            if (plan == null) continue;
+            plansByChunk.merge(entry.getKey(), new ChunkPlacementPlan[]{plan}, (existing, extra) -> {
+                ChunkPlacementPlan[] merged = Arrays.copyOf(existing, existing.length + 1);
+                merged[existing.length] = extra[0];
+                return merged;
+            });
+        }
+    }
+
+    public ChunkPlacementPlan[] getPlans(ChunkPos chunkPos) {
+        return plansByChunk.getOrDefault(chunkPos.toLong(), EMPTY);
+    }
+}
@@ -5,6 +5,21 @@ public enum RoadDirection {
     X_AXIS,
     Z_AXIS,
     DIAGONAL_1,
-    DIAGONAL_2
+    DIAGONAL_2;
 
+    // direction of a road stepping by (offsetX, offsetZ), a zero offset counts as X_AXIS
+    public static RoadDirection fromOffset(int offsetX, int offsetZ) {
+        int dx = Integer.signum(offsetX);
+        int dz = Integer.signum(offsetZ);
+        if (dx < 0 && dz > 0 || dx > 0 && dz < 0) {
+            return DIAGONAL_1;
+        }
+        if (dx < 0 && dz < 0 || dx > 0 && dz > 0) {
+            return DIAGONAL_2;
+        }
+        if (dx == 0 && dz != 0) {
+            return Z_AXIS;
+        }
+        return X_AXIS;
+    }
 }
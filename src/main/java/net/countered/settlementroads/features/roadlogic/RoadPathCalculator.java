@@ -1,135 +1,230 @@
 package net.countered.settlementroads.features.roadlogic;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import net.countered.settlementroads.SettlementRoads;
 import net.countered.settlementroads.config.ModConfig;
 import net.countered.settlementroads.helpers.Records;
-import net.minecraft.registry.entry.RegistryEntry;
-import net.minecraft.registry.tag.BiomeTags;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
-import net.minecraft.world.Heightmap;
-import net.minecraft.world.biome.Biome;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class RoadPathCalculator {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
 
-    private final static int neighborDistance = 4;
-
-    // Cache for height values, mapping hashed (x, z) to height (y)
-    public static final Map<Long, Integer> heightCache = new ConcurrentHashMap<>();
-
-    // Helper method to hash coordinates into a single long
-    private static long hashXZ(int x, int z) {
-        return ((long) x << 32) | (z & 0xFFFFFFFFL);
-    }
+    static final int neighborDistance = 4;
+    // coarse nodes per refinement leg in hierarchical mode
+    static final int LEG_CLUSTERS = 4;
 
     public static List<Records.RoadSegmentPlacement> calculateAStarRoadPath(
             BlockPos start, BlockPos end, int width, ServerWorld serverWorld, int maxSteps
     ) {
-        PriorityQueue<Node> openSet = new PriorityQueue<>(Comparator.comparingDouble(n -> n.fScore));
-        Map<BlockPos, Node> allNodes = new HashMap<>();
-        Set<BlockPos> closedSet = new HashSet<>();
-        Map<BlockPos, List<BlockPos>> interpolatedSegments = new HashMap<>();
+        RoadSearchJob job = createSearchJob(start, end, width, serverWorld, maxSteps);
+        while (job.step(Integer.MAX_VALUE, Long.MAX_VALUE) == RoadSearchJob.State.RUNNING);
+        return job.getResult();
+    }
 
+    public static RoadSearchJob createSearchJob(BlockPos start, BlockPos end, int width, ServerWorld serverWorld, int maxSteps) {
         int startX = snapToGrid(start.getX(), neighborDistance);
         int startZ = snapToGrid(start.getZ(), neighborDistance);
         int endX = snapToGrid(end.getX(), neighborDistance);
         int endZ = snapToGrid(end.getZ(), neighborDistance);
 
-        start = new BlockPos(startX, start.getY(), startZ);
-        end = new BlockPos(endX, end.getY(), endZ);
+        long dx = endX - startX;
+        long dz = endZ - startZ;
+        long hierarchicalDistance = ModConfig.hierarchicalPathfindingDistance;
+        boolean hierarchical = hierarchicalDistance > 0 && dx * dx + dz * dz > hierarchicalDistance * hierarchicalDistance;
+        return new RoadSearchJob(startX, startZ, endX, endZ, width, maxSteps, new TerrainCostModel(serverWorld), hierarchical);
+    }
 
-        BlockPos startGround = new BlockPos(start.getX(), heightSampler(start.getX(), start.getZ(), serverWorld), start.getZ());
-        BlockPos endGround = new BlockPos(end.getX(), heightSampler(end.getX(), end.getZ(), serverWorld), end.getZ());
+    static class TerrainCostModel implements AStarSearch.CostModel {
+        private final ServerWorld serverWorld;
+        private final TerrainHeightCache heightSampler;
+        private final BiomeCostSampler biomeSampler;
+        private TerrainCostRaster raster;
+        // only touched by the thread currently running the search slice
+        private long evaluatedSteps, waterSteps;
+
+        TerrainCostModel(ServerWorld serverWorld) {
+            this.serverWorld = serverWorld;
+            this.heightSampler = TerrainHeightCache.forWorld(serverWorld);
+            this.biomeSampler = BiomeCostSampler.forWorld(serverWorld);
+        }
 
-        Node startNode = new Node(startGround, null, 0.0, heuristic(startGround, endGround));
-        openSet.add(startNode);
-        allNodes.put(startGround, startNode);
+        ServerWorld getServerWorld() {
+            return serverWorld;
+        }
 
-        int d = neighborDistance;
-        int[][] neighborOffsets = {
-                {d, 0}, {-d, 0}, {0, d}, {0, -d},
-                {d, d}, {d, -d}, {-d, d}, {-d, -d}
-        };
+        // cells covered by the raster are read from it, everything else is sampled on demand
+        void setRaster(TerrainCostRaster raster) {
+            this.raster = raster;
+        }
 
-        while (!openSet.isEmpty() && maxSteps-- > 0) {
-            Node current = openSet.poll();
+        @Override
+        public int sampleHeight(int x, int z) {
+            if (raster != null) {
+                int cell = raster.cellIndex(x, z);
+                if (cell >= 0) {
+                    return raster.getHeight(cell);
+                }
+            }
+            return heightSampler.getHeight(x, z);
+        }
 
-            if (current.pos.withY(0).getManhattanDistance(endGround.withY(0)) < neighborDistance * 2) {
-                LOGGER.debug("Found path! " + current.pos);
-                return reconstructPath(current, width, interpolatedSegments);
+        @Override
+        public double edgeCost(int fromY, int x, int y, int z, boolean diagonal) {
+            evaluatedSteps++;
+            int elevation = Math.abs(y - fromY);
+            if (elevation > ModConfig.maxHeightDifference) {
+                return -1;
+            }
+            int cell = raster != null ? raster.cellIndex(x, z) : -1;
+            int terrainStabilityCost = cell >= 0 ? raster.getStability(cell) : calculateTerrainStability(x, y, z, heightSampler);
+            if (terrainStabilityCost > ModConfig.maxTerrainStability) {
+                return -1;
             }
+            boolean water = cell >= 0 ? raster.isWater(cell) : isWater(x, y, z);
+            if (water) waterSteps++;
+            int biomeCost = water ? 50 : 0;
+            double stepCost = diagonal ? 1.5 : 1;
+            int yLevelCost = y == 62 ? 20 : 0;
+            return stepCost
+                    + elevation * 40
+                    + biomeCost * 8
+                    + yLevelCost * 8
+                    + terrainStabilityCost * 16;
+        }
 
-            closedSet.add(current.pos);
-            allNodes.remove(current.pos);
-
-            for (int[] offset : neighborOffsets) {
-                BlockPos neighborXZ = current.pos.add(offset[0], 0, offset[1]);
-                int y = heightSampler(neighborXZ.getX(), neighborXZ.getZ(), serverWorld);
-                BlockPos neighborPos = new BlockPos(neighborXZ.getX(), y, neighborXZ.getZ());
-                if (closedSet.contains(neighborPos)) continue;
-
-                RegistryEntry<Biome> biomeRegistryEntry = biomeSampler(neighborPos, serverWorld);
-                int biomeCost = biomeRegistryEntry.isIn(BiomeTags.IS_RIVER)
-                        || biomeRegistryEntry.isIn(BiomeTags.IS_OCEAN)
-                        || biomeRegistryEntry.isIn(BiomeTags.IS_DEEP_OCEAN) ? 50 : 0;
-                int elevation = Math.abs(y - current.pos.getY());
-                if (elevation > ModConfig.maxHeightDifference) {
-                    continue;
-                }
-                int offsetSum = Math.abs(Math.abs(offset[0])) + Math.abs(offset[1]);
-                double stepCost = (offsetSum == 2 * neighborDistance) ? 1.5 : 1;
-                int terrainStabilityCost = calculateTerrainStability(neighborPos, y, serverWorld);
-                if (terrainStabilityCost > ModConfig.maxTerrainStability) {
-                    continue;
-                }
-                int yLevelCost = y == 62 ? 20 : 0;
-                double tentativeG = current.gScore + stepCost
-                        + elevation * 40
-                        + biomeCost * 8
-                        + yLevelCost * 8
-                        + terrainStabilityCost * 16;
-
-                Node neighbor = allNodes.get(neighborPos);
-                if (neighbor == null || tentativeG < neighbor.gScore) {
-                    double h = heuristic(neighborPos, endGround);
-                    neighbor = new Node(neighborPos, current, tentativeG, tentativeG + h);
-                    allNodes.put(neighborPos, neighbor);
-                    openSet.add(neighbor);
-
-                    List<BlockPos> segmentPoints = new ArrayList<>();
-                    for (int i = 1; i < neighborDistance; i++) {
-                        int interpX = current.pos.getX() + (offset[0] * i) / neighborDistance;
-                        int interpZ = current.pos.getZ() + (offset[1] * i) / neighborDistance;
-                        BlockPos interpolated = new BlockPos(interpX, current.pos.getY(), interpZ);
-                        segmentPoints.add(interpolated);
-                    }
-                    interpolatedSegments.put(neighborPos, segmentPoints);
-                }
+        @Override
+        public double heuristic(int x, int z, int goalX, int goalZ) {
+            return RoadPathCalculator.heuristic(x, z, goalX, goalZ);
+        }
+
+        boolean isWater(int x, int y, int z) {
+            return biomeSampler.isWater(x, y, z);
+        }
+
+        // share of evaluated steps that crossed water, used to tell why a search failed
+        double getWaterShare() {
+            return evaluatedSteps == 0 ? 0 : (double) waterSteps / evaluatedSteps;
+        }
+    }
+
+    // Cluster-grid costs: one sample per cluster, scaled to roughly what the fine search would pay across it
+    static class CoarseCostModel implements AStarSearch.CostModel {
+        private final TerrainCostModel terrain;
+        private final int stepsPerCluster;
+
+        CoarseCostModel(TerrainCostModel terrain, int clusterSize) {
+            this.terrain = terrain;
+            this.stepsPerCluster = clusterSize / neighborDistance;
+        }
+
+        @Override
+        public int sampleHeight(int x, int z) {
+            return terrain.sampleHeight(x, z);
+        }
+
+        @Override
+        public double edgeCost(int fromY, int x, int y, int z, boolean diagonal) {
+            int elevation = Math.abs(y - fromY);
+            // steeper than the fine search could climb across a whole cluster
+            if (elevation > ModConfig.maxHeightDifference * stepsPerCluster) {
+                return -1;
             }
+            terrain.evaluatedSteps++;
+            boolean water = terrain.isWater(x, y, z);
+            if (water) terrain.waterSteps++;
+            int biomeCost = water ? 50 * stepsPerCluster : 0;
+            int yLevelCost = y == 62 ? 20 : 0;
+            return stepsPerCluster * (diagonal ? 1.5 : 1)
+                    + elevation * 40
+                    + biomeCost * 8
+                    + yLevelCost * 8;
+        }
+
+        @Override
+        public double heuristic(int x, int z, int goalX, int goalZ) {
+            return RoadPathCalculator.heuristic(x, z, goalX, goalZ);
         }
-        return Collections.emptyList();
     }
 
-    private static double heuristic(BlockPos a, BlockPos b) {
-        int dx = a.getX() - b.getX();
-        int dz = a.getZ() - b.getZ();
+    // Path node coordinates in walking order
+    static class PathNodes {
+        private final IntArrayList xs = new IntArrayList();
+        private final IntArrayList ys = new IntArrayList();
+        private final IntArrayList zs = new IntArrayList();
+
+        void add(int x, int y, int z) {
+            xs.add(x);
+            ys.add(y);
+            zs.add(z);
+        }
+
+        // appends the search path ending at endNode, optionally without its start node
+        void append(AStarSearch search, int endNode, boolean skipStart) {
+            int from = size();
+            for (int node = endNode; node >= 0; node = search.getParent(node)) {
+                if (skipStart && search.getParent(node) < 0) break;
+                add(search.getX(node), search.getY(node), search.getZ(node));
+            }
+            reverse(xs, from);
+            reverse(ys, from);
+            reverse(zs, from);
+        }
+
+        int size() {
+            return xs.size();
+        }
+
+        int getX(int i) {
+            return xs.getInt(i);
+        }
+
+        int getY(int i) {
+            return ys.getInt(i);
+        }
+
+        int getZ(int i) {
+            return zs.getInt(i);
+        }
+
+        BlockPos get(int i) {
+            return new BlockPos(getX(i), getY(i), getZ(i));
+        }
+
+        IntArrayList xs() {
+            return xs;
+        }
+
+        IntArrayList zs() {
+            return zs;
+        }
+
+        private static void reverse(IntArrayList list, int from) {
+            for (int i = from, j = list.size() - 1; i < j; i++, j--) {
+                int tmp = list.getInt(i);
+                list.set(i, list.getInt(j));
+                list.set(j, tmp);
+            }
+        }
+    }
+
+    private static double heuristic(int x, int z, int goalX, int goalZ) {
+        int dx = x - goalX;
+        int dz = z - goalZ;
         double dxzApprox = Math.abs(dx) + Math.abs(dz) - 0.6 * Math.min(Math.abs(dx), Math.abs(dz));
         return dxzApprox * 30;
     }
 
-    private static int calculateTerrainStability(BlockPos neighborPos, int y, ServerWorld serverWorld) {
+    static int calculateTerrainStability(int x, int y, int z, HeightSource heightSampler) {
         int cost = 0;
         for (Direction direction : Direction.Type.HORIZONTAL) {
-            BlockPos testPos = neighborPos.offset(direction);
-            int testY = heightSampler(testPos.getX(), testPos.getZ(), serverWorld);
+            int testY = heightSampler.getHeight(x + direction.getOffsetX(), z + direction.getOffsetZ());
             int elevation = Math.abs(y - testY);
             cost += elevation;
             if (cost > 2) {
@@ -139,40 +234,24 @@ public class RoadPathCalculator {
         return cost;
     }
 
-    private static List<Records.RoadSegmentPlacement> reconstructPath(
-            Node endNode, int width, Map<BlockPos, List<BlockPos>> interpolatedPathMap
-    ) {
-        List<Node> pathNodes = new ArrayList<>();
-        Node current = endNode;
-        while (current != null) {
-            pathNodes.add(current);
-            current = current.parent;
-        }
-        Collections.reverse(pathNodes);
-
+    static List<Records.RoadSegmentPlacement> reconstructPath(PathNodes path, int width) {
         Map<BlockPos, Set<BlockPos>> roadSegments = new LinkedHashMap<>();
         Set<BlockPos> widthCache = new HashSet<>();
 
-        for (Node node : pathNodes) {
-            BlockPos pos = node.pos;
-            List<BlockPos> interpolated = interpolatedPathMap.getOrDefault(pos, Collections.emptyList());
+        for (int i = 0; i < path.size(); i++) {
+            BlockPos pos = path.get(i);
             RoadDirection roadDirection = RoadDirection.X_AXIS;
-            if (!interpolated.isEmpty()) {
-                BlockPos firstInterpolated = interpolated.get(0);
-                int dx = pos.getX() - firstInterpolated.getX();
-                int dz = pos.getZ() - firstInterpolated.getZ();
-
-                if (dx < 0 && dz > 0 || dx > 0 && dz < 0){
-                    roadDirection = RoadDirection.DIAGONAL_1;
-                }
-                else if (dx < 0 && dz < 0 || dx > 0 && dz > 0) {
-                    roadDirection = RoadDirection.DIAGONAL_2;
-                }
-                else if (dx == 0 && dz != 0) {
-                    roadDirection = RoadDirection.Z_AXIS;
-                }
-
-                for (BlockPos interp : interpolated) {
+            if (i > 0) {
+                // the previous node's height carries over the interpolated points between two grid nodes
+                int parentX = path.getX(i - 1);
+                int parentY = path.getY(i - 1);
+                int parentZ = path.getZ(i - 1);
+                int offsetX = pos.getX() - parentX;
+                int offsetZ = pos.getZ() - parentZ;
+                roadDirection = RoadDirection.fromOffset(offsetX, offsetZ);
+
+                for (int j = 1; j < neighborDistance; j++) {
+                    BlockPos interp = new BlockPos(parentX + (offsetX * j) / neighborDistance, parentY, parentZ + (offsetZ * j) / neighborDistance);
                     Set<BlockPos> widthSetInterp = generateWidth(interp, width / 2, widthCache, roadDirection);
                     roadSegments.put(interp, widthSetInterp);
                 }
@@ -189,33 +268,78 @@ public class RoadPathCalculator {
         return result;
     }
 
-    // Height sampler method
-    private static int heightSampler(int x, int z, ServerWorld serverWorld) {
-        long key = hashXZ(x, z);
-        return heightCache.computeIfAbsent(key, k -> serverWorld.getChunkManager()
-                .getChunkGenerator()
-                .getHeightInGround(x, z, Heightmap.Type.WORLD_SURFACE_WG, serverWorld, serverWorld.getChunkManager().getNoiseConfig()));
+    /**
+     * Rebuilds the width positions of a stored road from its middle positions and per-segment directions,
+     * in the same order and with the same per-road deduplication as {@link #reconstructPath}.
+     */
+    public static List<Records.RoadSegmentPlacement> rebuildPlacements(List<BlockPos> middlePositions, List<RoadDirection> directions, int width) {
+        Set<BlockPos> widthCache = new HashSet<>();
+        List<Records.RoadSegmentPlacement> result = new ArrayList<>(middlePositions.size());
+        for (int i = 0; i < middlePositions.size(); i++) {
+            BlockPos middlePos = middlePositions.get(i);
+            Set<BlockPos> widthSet = generateWidth(middlePos, width / 2, widthCache, directions.get(i));
+            result.add(new Records.RoadSegmentPlacement(middlePos, new ArrayList<>(widthSet)));
+        }
+        return result;
     }
 
-    // Biome sampler method
-    private static RegistryEntry<Biome> biomeSampler(BlockPos pos, ServerWorld serverWorld) {
-        return serverWorld.getBiome(pos);
-    }
+    /**
+     * Replaces each segment's middle height with the road surface height chunk generation will place it at.
+     * The generated surface is sampled once per segment and averaged over {@link ModConfig#averagingRadius}
+     * segments on each side with a prefix-sum sliding window; if {@link ModConfig#maxRoadGradePercent} is set,
+     * the profile is then clamped so it never climbs or drops faster than that grade. Natural roads, and all roads
+     * when the averaging radius is 0, follow the generated surface instead, so neither step applies to them.
+     * Runs once on the worker that found the path, so chunk generation no longer samples heights.
+     */
+    public static List<Records.RoadSegmentPlacement> planHeights(ServerWorld serverWorld, List<Records.RoadSegmentPlacement> segments) {
+        int count = segments.size();
+        if (count == 0) {
+            return segments;
+        }
+        TerrainHeightCache heightCache = TerrainHeightCache.forWorld(serverWorld);
+        // prefix[i] is the sum of the first i surface heights
+        long[] prefix = new long[count + 1];
+        for (int i = 0; i < count; i++) {
+            BlockPos middlePos = segments.get(i).middlePos();
+            // the cache holds the top solid block, the road surface is the block above it
+            prefix[i + 1] = prefix[i] + heightCache.getHeight(middlePos.getX(), middlePos.getZ()) + 1;
+        }
+        int averagingRadius = ModConfig.averagingRadius;
+        double[] profile = new double[count];
+        for (int i = 0; i < count; i++) {
+            int from = Math.max(0, i - averagingRadius);
+            int to = Math.min(count, i + averagingRadius + 1);
+            profile[i] = (double) (prefix[to] - prefix[from]) / (to - from);
+        }
+        if (ModConfig.maxRoadGradePercent > 0) {
+            limitGrade(segments, profile, ModConfig.maxRoadGradePercent / 100.0);
+        }
 
-    private static class Node {
-        BlockPos pos;
-        Node parent;
-        double gScore, fScore;
+        List<Records.RoadSegmentPlacement> planned = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Records.RoadSegmentPlacement segment = segments.get(i);
+            planned.add(new Records.RoadSegmentPlacement(segment.middlePos().withY((int) Math.round(profile[i])), segment.positions()));
+        }
+        return planned;
+    }
 
-        Node(BlockPos pos, Node parent, double gScore, double fScore) {
-            this.pos = pos;
-            this.parent = parent;
-            this.gScore = gScore;
-            this.fScore = fScore;
+    // clamps every height to within grade times the horizontal distance of its neighbours, forwards then backwards
+    private static void limitGrade(List<Records.RoadSegmentPlacement> segments, double[] profile, double grade) {
+        double[] rise = new double[profile.length];
+        for (int i = 1; i < profile.length; i++) {
+            BlockPos a = segments.get(i - 1).middlePos();
+            BlockPos b = segments.get(i).middlePos();
+            rise[i] = grade * Math.sqrt(a.getSquaredDistance(b.getX(), a.getY(), b.getZ()));
+        }
+        for (int i = 1; i < profile.length; i++) {
+            profile[i] = Math.max(profile[i - 1] - rise[i], Math.min(profile[i - 1] + rise[i], profile[i]));
+        }
+        for (int i = profile.length - 2; i >= 0; i--) {
+            profile[i] = Math.max(profile[i + 1] - rise[i + 1], Math.min(profile[i + 1] + rise[i + 1], profile[i]));
         }
     }
 
-    private static int snapToGrid(int value, int gridSize) {
+    static int snapToGrid(int value, int gridSize) {
         return Math.floorDiv(value, gridSize) * gridSize;
     }
 
@@ -0,0 +1,245 @@
+package net.countered.settlementroads.features.roadlogic;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.countered.settlementroads.SettlementRoads;
+import net.countered.settlementroads.config.ModConfig;
+import net.countered.settlementroads.helpers.Records;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A road search that advances in bounded slices. The open set survives between slices, so a scheduler can
+ * interleave many searches, read their progress and cancel them at any slice boundary.
+ * The terrain raster of a phase is filled by the same slices before the phase expands any node.
+ */
+public class RoadSearchJob {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
+
+    // expansions between two time and cancellation checks
+    private static final int CHECK_INTERVAL = 64;
+    // share of water steps above which a search that ran out of budget counts as water-locked
+    private static final double WATER_LOCKED_SHARE = 0.5;
+
+    public enum State {
+        RUNNING,
+        FOUND,
+        FAILED,
+        CANCELLED
+    }
+
+    private enum Phase {
+        DIRECT,
+        COARSE,
+        LEGS
+    }
+
+    private final int endX, endZ, width, maxSteps;
+    private final RoadPathCalculator.TerrainCostModel costModel;
+    private final int clusterSize;
+    private final RoadPathCalculator.PathNodes path = new RoadPathCalculator.PathNodes();
+
+    private AStarSearch search;
+    private Phase phase;
+    // raster of the current phase that still has tiles to fill
+    private TerrainCostRaster fillingRaster;
+    private RoadPathCalculator.PathNodes coarseRoute;
+    private int legTarget;
+    private int legCount;
+    private int legsDone;
+
+    private volatile State state = State.RUNNING;
+    private volatile boolean cancelRequested;
+    private volatile float progress;
+    private volatile Records.FailureReason failureReason;
+    private List<Records.RoadSegmentPlacement> result = Collections.emptyList();
+
+    RoadSearchJob(int startX, int startZ, int endX, int endZ, int width, int maxSteps,
+                  RoadPathCalculator.TerrainCostModel costModel, boolean hierarchical) {
+        this.endX = endX;
+        this.endZ = endZ;
+        this.width = width;
+        this.maxSteps = maxSteps;
+        this.costModel = costModel;
+        this.clusterSize = Math.max(RoadPathCalculator.neighborDistance,
+                RoadPathCalculator.snapToGrid(ModConfig.hierarchicalClusterSize, RoadPathCalculator.neighborDistance));
+        this.search = AStarSearch.acquire();
+
+        int startY = costModel.sampleHeight(startX, startZ);
+        path.add(startX, startY, startZ);
+        if (hierarchical) {
+            phase = Phase.COARSE;
+            search.start(startX, startY, startZ, endX, endZ, clusterSize, maxSteps,
+                    new RoadPathCalculator.CoarseCostModel(costModel, clusterSize));
+        }
+        else {
+            phase = Phase.DIRECT;
+            attachRaster(IntArrayList.of(startX, endX), IntArrayList.of(startZ, endZ));
+            search.start(startX, startY, startZ, endX, endZ, RoadPathCalculator.neighborDistance, maxSteps, costModel);
+        }
+    }
+
+    /**
+     * Runs until the search finishes, maxExpansions nodes were expanded or maxNanos elapsed,
+     * whichever comes first. Cancellation and thread interruption are honoured between checks.
+     */
+    public State step(int maxExpansions, long maxNanos) {
+        long deadline = System.nanoTime() + maxNanos;
+        while (state == State.RUNNING && maxExpansions > 0) {
+            if (cancelRequested || Thread.currentThread().isInterrupted()) {
+                finish(State.CANCELLED);
+                break;
+            }
+            if (fillingRaster != null) {
+                // 先逐块填充地形栅格，每块之后检查时间和取消
+                if (fillingRaster.fillNext()) {
+                    fillingRaster = null;
+                }
+                updateProgress();
+                if (System.nanoTime() - deadline >= 0) {
+                    break;
+                }
+                continue;
+            }
+            int slice = Math.min(maxExpansions, CHECK_INTERVAL);
+            maxExpansions -= slice;
+            int node = search.expand(slice);
+            if (node == AStarSearch.NOT_FOUND) {
+                failureReason = classifyFailure();
+                LOGGER.debug("Road search failed in phase " + phase + ": " + failureReason);
+                finish(State.FAILED);
+            }
+            else if (node != AStarSearch.IN_PROGRESS) {
+                onGoalReached(node);
+            }
+            updateProgress();
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+        return state;
+    }
+
+    public void cancel() {
+        cancelRequested = true;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isDone() {
+        return state != State.RUNNING;
+    }
+
+    public float getProgress() {
+        return progress;
+    }
+
+    public List<Records.RoadSegmentPlacement> getResult() {
+        return result;
+    }
+
+    // reason of a FAILED search, null otherwise
+    public Records.FailureReason getFailureReason() {
+        return failureReason;
+    }
+
+    private Records.FailureReason classifyFailure() {
+        if (!search.isBudgetExhausted()) {
+            // 开放集耗尽：只有不受范围限制的直接搜索才能说明高度差或地形稳定性挡住了所有路线，
+            // 粗略路线和限定范围内的分段搜索可能只是范围不够
+            return phase == Phase.DIRECT ? Records.FailureReason.HEIGHT_LIMIT : Records.FailureReason.CORRIDOR_BLOCKED;
+        }
+        return costModel.getWaterShare() > WATER_LOCKED_SHARE ? Records.FailureReason.WATER_LOCKED : Records.FailureReason.BUDGET_EXHAUSTED;
+    }
+
+    private void onGoalReached(int node) {
+        switch (phase) {
+            case DIRECT -> {
+                path.append(search, node, true);
+                LOGGER.debug("Found path! " + path.get(path.size() - 1));
+                result = RoadPathCalculator.reconstructPath(path, width);
+                finish(State.FOUND);
+            }
+            case COARSE -> {
+                coarseRoute = new RoadPathCalculator.PathNodes();
+                coarseRoute.append(search, node, false);
+                legCount = Math.max(1, (coarseRoute.size() - 2) / RoadPathCalculator.LEG_CLUSTERS + 1);
+                phase = Phase.LEGS;
+                attachRaster(coarseRoute.xs(), coarseRoute.zs());
+                legTarget = 0;
+                startNextLeg();
+            }
+            case LEGS -> {
+                path.append(search, node, true);
+                legsDone++;
+                if (legTarget >= coarseRoute.size() - 1) {
+                    LOGGER.debug("Found path! " + path.get(path.size() - 1));
+                    result = RoadPathCalculator.reconstructPath(path, width);
+                    finish(State.FOUND);
+                }
+                else {
+                    startNextLeg();
+                }
+            }
+        }
+    }
+
+    // refines towards every LEG_CLUSTERS-th coarse node, the last leg goes to the real end
+    private void startNextLeg() {
+        legTarget = Math.min(legTarget + RoadPathCalculator.LEG_CLUSTERS, coarseRoute.size() - 1);
+        boolean lastLeg = legTarget >= coarseRoute.size() - 1;
+        int goalX = lastLeg ? endX : coarseRoute.getX(legTarget);
+        int goalZ = lastLeg ? endZ : coarseRoute.getZ(legTarget);
+        int legStart = path.size() - 1;
+        int fromX = path.getX(legStart);
+        int fromZ = path.getZ(legStart);
+        int margin = clusterSize * 2;
+        search.start(fromX, path.getY(legStart), fromZ, goalX, goalZ, RoadPathCalculator.neighborDistance, maxSteps, costModel,
+                Math.min(fromX, goalX) - margin, Math.min(fromZ, goalZ) - margin,
+                Math.max(fromX, goalX) + margin, Math.max(fromZ, goalZ) + margin);
+    }
+
+    // precomputes the terrain along the expected route, searches fall back to on-demand sampling outside of it
+    private void attachRaster(IntArrayList xs, IntArrayList zs) {
+        if (ModConfig.costRasterCorridorWidth <= 0) {
+            return;
+        }
+        TerrainCostRaster raster = TerrainCostRaster.plan(costModel.getServerWorld(), xs, zs,
+                ModConfig.costRasterCorridorWidth, RoadPathCalculator.neighborDistance);
+        if (raster == null) {
+            LOGGER.debug("Road corridor too large for a cost raster, sampling terrain on demand");
+        }
+        costModel.setRaster(raster);
+        fillingRaster = raster;
+    }
+
+    private void updateProgress() {
+        if (state == State.FOUND) {
+            progress = 1f;
+            return;
+        }
+        if (search == null) {
+            return;
+        }
+        // a phase counts as started once its raster is filled
+        float phaseProgress = fillingRaster != null ? 0f : search.getProgress();
+        progress = switch (phase) {
+            case DIRECT -> phaseProgress;
+            case COARSE -> 0.1f * phaseProgress;
+            case LEGS -> 0.1f + 0.9f * Math.min(1f, (legsDone + phaseProgress) / legCount);
+        };
+    }
+
+    private void finish(State finalState) {
+        state = finalState;
+        if (search != null) {
+            search.release();
+            search = null;
+        }
+    }
+}
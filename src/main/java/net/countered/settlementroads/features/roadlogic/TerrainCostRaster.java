@@ -0,0 +1,165 @@
+package net.countered.settlementroads.features.roadlogic;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.server.world.ServerWorld;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Precomputed terrain facts (height, stability cost, water flag) for the search grid cells along a corridor.
+ * Cells are grouped into tiles of 16x16 grid cells; only tiles touching the corridor are allocated. The tiles are
+ * filled one at a time through {@link #fillNext()} by the search slices that own the raster, so the fill stays
+ * within the slice budget and can be cancelled between tiles. Tiles that are not filled yet read as outside
+ * the raster, and a filled tile is never written again.
+ */
+final class TerrainCostRaster {
+
+    static final byte UNSTABLE = Byte.MAX_VALUE;
+
+    private static final int TILE_SHIFT = 4;
+    private static final int TILE_CELLS = 1 << TILE_SHIFT;
+    private static final int TILE_MASK = TILE_CELLS - 1;
+    private static final int MAX_TILES = 4096;
+
+    private final int cellSize;
+    private final TerrainHeightCache heightCache;
+    private final BiomeCostSampler biomeSampler;
+    private final Long2ObjectOpenHashMap<Tile> tiles = new Long2ObjectOpenHashMap<>();
+    // tiles in fill order, the ones before nextFill are filled
+    private final List<Tile> fillOrder = new ArrayList<>();
+    private int nextFill;
+
+    // last tile hit, consecutive lookups are almost always in the same tile
+    private long lastTileKey;
+    private Tile lastTile;
+
+    private TerrainCostRaster(ServerWorld serverWorld, int cellSize) {
+        this.cellSize = cellSize;
+        this.heightCache = TerrainHeightCache.forWorld(serverWorld);
+        this.biomeSampler = BiomeCostSampler.forWorld(serverWorld);
+    }
+
+    /**
+     * Allocates the raster for every tile within halfWidth blocks of the polyline through the given points,
+     * or returns null if the corridor would need more than {@link #MAX_TILES} tiles. No tile is filled yet.
+     */
+    static TerrainCostRaster plan(ServerWorld serverWorld, IntArrayList xs, IntArrayList zs, int halfWidth, int cellSize) {
+        TerrainCostRaster raster = new TerrainCostRaster(serverWorld, cellSize);
+        int tileBlocks = TILE_CELLS * cellSize;
+        int minX = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (int i = 0; i < xs.size(); i++) {
+            minX = Math.min(minX, xs.getInt(i));
+            maxX = Math.max(maxX, xs.getInt(i));
+            minZ = Math.min(minZ, zs.getInt(i));
+            maxZ = Math.max(maxZ, zs.getInt(i));
+        }
+        int minTileX = Math.floorDiv(minX - halfWidth, tileBlocks);
+        int maxTileX = Math.floorDiv(maxX + halfWidth, tileBlocks);
+        int minTileZ = Math.floorDiv(minZ - halfWidth, tileBlocks);
+        int maxTileZ = Math.floorDiv(maxZ + halfWidth, tileBlocks);
+
+        double reach = halfWidth + tileBlocks * 0.75;
+        for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+            for (int tileZ = minTileZ; tileZ <= maxTileZ; tileZ++) {
+                double centerX = (tileX + 0.5) * tileBlocks;
+                double centerZ = (tileZ + 0.5) * tileBlocks;
+                if (distanceToPolyline(centerX, centerZ, xs, zs) > reach) continue;
+                if (raster.fillOrder.size() >= MAX_TILES) {
+                    return null;
+                }
+                Tile tile = new Tile(tileX, tileZ);
+                raster.fillOrder.add(tile);
+                raster.tiles.put(AStarSearch.packXZ(tileX, tileZ), tile);
+            }
+        }
+        return raster;
+    }
+
+    // fills the next tile, returns true once every tile is filled
+    boolean fillNext() {
+        if (nextFill < fillOrder.size()) {
+            fill(fillOrder.get(nextFill++));
+        }
+        return nextFill >= fillOrder.size();
+    }
+
+    // index of the cell at (x, z) inside its tile, or -1 if (x, z) is off the grid or outside the raster
+    int cellIndex(int x, int z) {
+        if (x % cellSize != 0 || z % cellSize != 0) {
+            return -1;
+        }
+        int cellX = Math.floorDiv(x, cellSize);
+        int cellZ = Math.floorDiv(z, cellSize);
+        long key = AStarSearch.packXZ(cellX >> TILE_SHIFT, cellZ >> TILE_SHIFT);
+        if (lastTile == null || lastTileKey != key) {
+            Tile tile = tiles.get(key);
+            if (tile == null || !tile.filled) {
+                return -1;
+            }
+            lastTileKey = key;
+            lastTile = tile;
+        }
+        return ((cellZ & TILE_MASK) << TILE_SHIFT) | (cellX & TILE_MASK);
+    }
+
+    // the accessors below read the tile found by the preceding cellIndex call
+    int getHeight(int cell) {
+        return lastTile.heights[cell];
+    }
+
+    int getStability(int cell) {
+        byte stability = lastTile.stability[cell];
+        return stability == UNSTABLE ? Integer.MAX_VALUE : stability;
+    }
+
+    boolean isWater(int cell) {
+        return lastTile.water[cell];
+    }
+
+    private static double distanceToPolyline(double x, double z, IntArrayList xs, IntArrayList zs) {
+        if (xs.size() == 1) {
+            return Math.hypot(x - xs.getInt(0), z - zs.getInt(0));
+        }
+        double best = Double.MAX_VALUE;
+        for (int i = 1; i < xs.size(); i++) {
+            double ax = xs.getInt(i - 1), az = zs.getInt(i - 1);
+            double bx = xs.getInt(i), bz = zs.getInt(i);
+            double dx = bx - ax, dz = bz - az;
+            double lengthSq = dx * dx + dz * dz;
+            double t = lengthSq == 0 ? 0 : Math.max(0, Math.min(1, ((x - ax) * dx + (z - az) * dz) / lengthSq));
+            best = Math.min(best, Math.hypot(x - (ax + t * dx), z - (az + t * dz)));
+        }
+        return best;
+    }
+
+    private void fill(Tile tile) {
+        for (int cellZ = 0; cellZ < TILE_CELLS; cellZ++) {
+            for (int cellX = 0; cellX < TILE_CELLS; cellX++) {
+                int index = (cellZ << TILE_SHIFT) | cellX;
+                int x = ((tile.tileX << TILE_SHIFT) + cellX) * cellSize;
+                int z = ((tile.tileZ << TILE_SHIFT) + cellZ) * cellSize;
+                int y = heightCache.getHeight(x, z);
+                int stability = RoadPathCalculator.calculateTerrainStability(x, y, z, heightCache);
+                tile.heights[index] = y;
+                tile.stability[index] = stability > UNSTABLE ? UNSTABLE : (byte) stability;
+                tile.water[index] = biomeSampler.isWater(x, y, z);
+            }
+        }
+        tile.filled = true;
+    }
+
+    private static final class Tile {
+        final int tileX, tileZ;
+        final int[] heights = new int[TILE_CELLS * TILE_CELLS];
+        final byte[] stability = new byte[TILE_CELLS * TILE_CELLS];
+        final boolean[] water = new boolean[TILE_CELLS * TILE_CELLS];
+        boolean filled;
+
+        Tile(int tileX, int tileZ) {
+            this.tileX = tileX;
+            this.tileZ = tileZ;
+        }
+    }
+}
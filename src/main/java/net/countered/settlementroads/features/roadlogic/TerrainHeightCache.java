@@ -0,0 +1,105 @@
+package net.countered.settlementroads.features.roadlogic;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import net.countered.settlementroads.config.ModConfig;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.world.World;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-world cache of generator surface heights, held as chunk-sized tiles keyed by packed chunk (x, z).
+ * A missing tile is sampled in one pass by {@link TerrainTileSampler}, so a node and its stability probes
+ * are served by the same noise evaluation.
+ * The cache is split into lock-striped LRU segments whose combined size stays within
+ * {@link ModConfig#heightCacheSizeMB}; the least recently used tile of a full segment is evicted.
+ */
+public class TerrainHeightCache implements HeightSource {
+
+    private static final Map<RegistryKey<World>, TerrainHeightCache> CACHES = new ConcurrentHashMap<>();
+
+    // 256 heights plus array header, key + value + before/after links of the linked map, plus load factor slack
+    private static final int BYTES_PER_TILE = TerrainTileSampler.TILE_SIZE * TerrainTileSampler.TILE_SIZE * 4 + 16 + 40;
+    private static final int STRIPE_COUNT = 16;
+
+    public record Stats(long hits, long misses, long evictions, long size, long capacity) {}
+
+    private final ServerWorld serverWorld;
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+    private final int stripeCapacity;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private TerrainHeightCache(ServerWorld serverWorld, long budgetBytes) {
+        this.serverWorld = serverWorld;
+        this.stripeCapacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, budgetBytes / BYTES_PER_TILE / STRIPE_COUNT));
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe(Math.min(stripeCapacity, 256));
+        }
+    }
+
+    public static TerrainHeightCache forWorld(ServerWorld serverWorld) {
+        return CACHES.computeIfAbsent(serverWorld.getRegistryKey(),
+                key -> new TerrainHeightCache(serverWorld, ModConfig.heightCacheSizeMB * 1024L * 1024L));
+    }
+
+    public static TerrainHeightCache remove(ServerWorld serverWorld) {
+        return CACHES.remove(serverWorld.getRegistryKey());
+    }
+
+    public static void clear() {
+        CACHES.clear();
+    }
+
+    @Override
+    public int getHeight(int x, int z) {
+        int tileX = x >> TerrainTileSampler.TILE_SHIFT;
+        int tileZ = z >> TerrainTileSampler.TILE_SHIFT;
+        int index = ((z & TerrainTileSampler.TILE_MASK) << TerrainTileSampler.TILE_SHIFT) | (x & TerrainTileSampler.TILE_MASK);
+        long key = AStarSearch.packXZ(tileX, tileZ);
+        Stripe stripe = stripes[(int) (HashCommon.mix(key) & (STRIPE_COUNT - 1))];
+        int[] tile;
+        synchronized (stripe) {
+            tile = stripe.map.getAndMoveToLast(key);
+        }
+        if (tile != null) {
+            hits.increment();
+            return tile[index];
+        }
+        misses.increment();
+        // sample outside the lock; two threads racing on the same tile compute the same values
+        tile = TerrainTileSampler.sample(serverWorld, tileX, tileZ);
+        synchronized (stripe) {
+            stripe.map.putAndMoveToLast(key, tile);
+            if (stripe.map.size() > stripeCapacity) {
+                stripe.map.removeFirst();
+                evictions.increment();
+            }
+        }
+        return tile[index];
+    }
+
+    public Stats getStats() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.map.size();
+            }
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), size, (long) stripeCapacity * STRIPE_COUNT);
+    }
+
+    private static class Stripe {
+        final Long2ObjectLinkedOpenHashMap<int[]> map;
+
+        Stripe(int expected) {
+            map = new Long2ObjectLinkedOpenHashMap<>(expected);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package net.countered.settlementroads.features.roadlogic;
+
+import net.countered.settlementroads.mixin.ChunkNoiseSamplerInvoker;
+import net.countered.settlementroads.mixin.NoiseChunkGeneratorAccessor;
+import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.gen.chunk.Blender;
+import net.minecraft.world.gen.chunk.ChunkGenerator;
+import net.minecraft.world.gen.chunk.ChunkGeneratorSettings;
+import net.minecraft.world.gen.chunk.ChunkNoiseSampler;
+import net.minecraft.world.gen.chunk.GenerationShapeConfig;
+import net.minecraft.world.gen.chunk.NoiseChunkGenerator;
+import net.minecraft.world.gen.densityfunction.DensityFunctionTypes;
+import net.minecraft.world.gen.noise.NoiseConfig;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Samples the generator surface of a whole chunk in one noise pass.
+ * {@link ChunkGenerator#getHeightInGround} sets up a noise sampler and evaluates the cell corners again for every
+ * column; here the corners are evaluated once per cell and shared by all columns of the chunk, the same way
+ * {@link NoiseChunkGenerator} fills a chunk. Each cell is scanned top-down and stops once all of its columns hit
+ * the surface. Generators without noise settings are sampled column by column.
+ */
+final class TerrainTileSampler {
+
+    static final int TILE_SHIFT = 4;
+    static final int TILE_SIZE = 1 << TILE_SHIFT;
+    static final int TILE_MASK = TILE_SIZE - 1;
+
+    private static final Predicate<BlockState> SURFACE = Heightmap.Type.WORLD_SURFACE_WG.getBlockPredicate();
+
+    private TerrainTileSampler() {
+    }
+
+    // heights in ground of the chunk, indexed (z << 4) | x, matching getHeightInGround with WORLD_SURFACE_WG
+    static int[] sample(ServerWorld serverWorld, int chunkX, int chunkZ) {
+        ChunkGenerator chunkGenerator = serverWorld.getChunkManager().getChunkGenerator();
+        NoiseConfig noiseConfig = serverWorld.getChunkManager().getNoiseConfig();
+        int startX = chunkX << TILE_SHIFT;
+        int startZ = chunkZ << TILE_SHIFT;
+        if (chunkGenerator instanceof NoiseChunkGenerator noiseGenerator) {
+            int[] tile = sampleNoise(serverWorld, noiseGenerator, noiseConfig, startX, startZ);
+            if (tile != null) {
+                return tile;
+            }
+        }
+        int[] tile = new int[TILE_SIZE * TILE_SIZE];
+        for (int z = 0; z < TILE_SIZE; z++) {
+            for (int x = 0; x < TILE_SIZE; x++) {
+                tile[(z << TILE_SHIFT) | x] = chunkGenerator.getHeightInGround(startX + x, startZ + z,
+                        Heightmap.Type.WORLD_SURFACE_WG, serverWorld, noiseConfig);
+            }
+        }
+        return tile;
+    }
+
+    private static int[] sampleNoise(ServerWorld serverWorld, NoiseChunkGenerator noiseGenerator, NoiseConfig noiseConfig, int startX, int startZ) {
+        ChunkGeneratorSettings settings = noiseGenerator.getSettings().value();
+        GenerationShapeConfig shape = settings.generationShapeConfig().trimHeight(serverWorld);
+        int cellWidth = shape.horizontalCellBlockCount();
+        int cellHeight = shape.verticalCellBlockCount();
+        int cellCountXZ = TILE_SIZE / cellWidth;
+        int cellCountY = MathHelper.floorDiv(shape.height(), cellHeight);
+        int minimumCellY = MathHelper.floorDiv(shape.minimumY(), cellHeight);
+        if (cellCountY <= 0 || cellCountXZ * cellWidth != TILE_SIZE) {
+            return null;
+        }
+
+        int[] tile = new int[TILE_SIZE * TILE_SIZE];
+        // columns without any block report one below the bottom, like getHeightInGround
+        Arrays.fill(tile, serverWorld.getBottomY() - 1);
+        BlockState defaultBlock = settings.defaultBlock();
+        ChunkNoiseSampler sampler = new ChunkNoiseSampler(cellCountXZ, noiseConfig, startX, startZ, shape,
+                DensityFunctionTypes.Beardifier.INSTANCE, settings,
+                ((NoiseChunkGeneratorAccessor) noiseGenerator).settlementroads$getFluidLevelSampler().get(), Blender.getNoBlending());
+        ChunkNoiseSamplerInvoker blockSampler = (ChunkNoiseSamplerInvoker) sampler;
+        boolean[] found = new boolean[cellWidth * cellWidth];
+
+        sampler.sampleStartDensity();
+        for (int cellX = 0; cellX < cellCountXZ; cellX++) {
+            sampler.sampleEndDensity(cellX);
+            for (int cellZ = 0; cellZ < cellCountXZ; cellZ++) {
+                Arrays.fill(found, false);
+                int remaining = found.length;
+                for (int cellY = cellCountY - 1; cellY >= 0 && remaining > 0; cellY--) {
+                    sampler.onSampledCellCorners(cellY, cellZ);
+                    for (int offsetY = cellHeight - 1; offsetY >= 0 && remaining > 0; offsetY--) {
+                        int y = (minimumCellY + cellY) * cellHeight + offsetY;
+                        sampler.interpolateY(y, (double) offsetY / cellHeight);
+                        for (int offsetX = 0; offsetX < cellWidth; offsetX++) {
+                            int localX = cellX * cellWidth + offsetX;
+                            for (int offsetZ = 0; offsetZ < cellWidth; offsetZ++) {
+                                int column = offsetX * cellWidth + offsetZ;
+                                if (found[column]) {
+                                    continue;
+                                }
+                                int localZ = cellZ * cellWidth + offsetZ;
+                                sampler.interpolateX(startX + localX, (double) offsetX / cellWidth);
+                                sampler.interpolateZ(startZ + localZ, (double) offsetZ / cellWidth);
+                                BlockState state = blockSampler.settlementroads$sampleBlockState();
+                                if (SURFACE.test(state == null ? defaultBlock : state)) {
+                                    found[column] = true;
+                                    remaining--;
+                                    tile[(localZ << TILE_SHIFT) | localX] = y;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            sampler.swapBuffers();
+        }
+        sampler.stopInterpolation();
+        return tile;
+    }
+}
@@ -0,0 +1,186 @@
+package net.countered.settlementroads.helpers;
+
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+import net.minecraft.util.math.BlockPos;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * All planned and generated structure connections of a world, keyed by the unordered structure pair so that
+ * lookups and status changes do not scan the connection list. Each entry also tracks how often its road was
+ * attempted and when it was created and last changed, in world ticks, plus the failure state that
+ * {@link RoadRetryPolicy} uses to back off from roads that keep failing.
+ * Saved as the connection list of older versions with the extra fields optional. Server thread only.
+ */
+public class ConnectionRegistry {
+
+    // the two packed positions in ascending order, so both directions map to the same key
+    private record PairKey(long low, long high) {
+        static PairKey of(BlockPos a, BlockPos b) {
+            long first = a.asLong();
+            long second = b.asLong();
+            return first <= second ? new PairKey(first, second) : new PairKey(second, first);
+        }
+    }
+
+    public static final class Entry {
+        private final BlockPos from;
+        private final BlockPos to;
+        private Records.ConnectionStatus status;
+        private int attempts;
+        private final long createdTick;
+        private long updatedTick;
+        // failures in a row with the same reason and config, reset when either changes
+        int failures;
+        Records.FailureReason failureReason;
+        int failureConfigHash;
+        long retryTick;
+        // the search budget is doubled per level
+        int budgetLevel;
+
+        private Entry(BlockPos from, BlockPos to, Records.ConnectionStatus status, int attempts, long createdTick, long updatedTick) {
+            this.from = from;
+            this.to = to;
+            this.status = status;
+            this.attempts = attempts;
+            this.createdTick = createdTick;
+            this.updatedTick = updatedTick;
+        }
+
+        private static Entry decode(BlockPos from, BlockPos to, Records.ConnectionStatus status, int attempts, long createdTick, long updatedTick,
+                                    int failures, Optional<Records.FailureReason> failureReason, int failureConfigHash, long retryTick, int budgetLevel) {
+            Entry entry = new Entry(from, to, status, attempts, createdTick, updatedTick);
+            entry.failures = failures;
+            entry.failureReason = failureReason.orElse(null);
+            entry.failureConfigHash = failureConfigHash;
+            entry.retryTick = retryTick;
+            entry.budgetLevel = budgetLevel;
+            return entry;
+        }
+
+        public BlockPos from() { return from; }
+        public BlockPos to() { return to; }
+        public Records.ConnectionStatus status() { return status; }
+        public int attempts() { return attempts; }
+        public long createdTick() { return createdTick; }
+        public long updatedTick() { return updatedTick; }
+        public int failures() { return failures; }
+        public Records.FailureReason failureReason() { return failureReason; }
+        public int budgetLevel() { return budgetLevel; }
+
+        public Records.StructureConnection toConnection() {
+            return new Records.StructureConnection(from, to, status);
+        }
+
+        private static final Codec<Entry> CODEC = RecordCodecBuilder.create(instance ->
+                instance.group(
+                        BlockPos.CODEC.fieldOf("from").forGetter(Entry::from),
+                        BlockPos.CODEC.fieldOf("to").forGetter(Entry::to),
+                        Codec.STRING.optionalFieldOf("status", "PLANNED").xmap(
+                                Records.ConnectionStatus::valueOf,
+                                Records.ConnectionStatus::name
+                        ).forGetter(Entry::status),
+                        Codec.INT.optionalFieldOf("attempts", 0).forGetter(Entry::attempts),
+                        Codec.LONG.optionalFieldOf("created", 0L).forGetter(Entry::createdTick),
+                        Codec.LONG.optionalFieldOf("updated", 0L).forGetter(Entry::updatedTick),
+                        Codec.INT.optionalFieldOf("failures", 0).forGetter(Entry::failures),
+                        Codec.STRING.xmap(Records.FailureReason::valueOf, Records.FailureReason::name)
+                                .optionalFieldOf("failure_reason").forGetter(entry -> Optional.ofNullable(entry.failureReason)),
+                        Codec.INT.optionalFieldOf("failure_config", 0).forGetter(entry -> entry.failureConfigHash),
+                        Codec.LONG.optionalFieldOf("retry_tick", 0L).forGetter(entry -> entry.retryTick),
+                        Codec.INT.optionalFieldOf("budget_level", 0).forGetter(Entry::budgetLevel)
+                ).apply(instance, Entry::decode)
+        );
+    }
+
+    public static final Codec<ConnectionRegistry> CODEC = Entry.CODEC.listOf()
+            .xmap(ConnectionRegistry::new, ConnectionRegistry::entryList);
+
+    private final Map<PairKey, Entry> entries = new LinkedHashMap<>();
+
+    public ConnectionRegistry() {
+    }
+
+    private ConnectionRegistry(List<Entry> entries) {
+        for (Entry entry : entries) {
+            // older saves could hold the same pair in both directions, the first one wins
+            this.entries.putIfAbsent(PairKey.of(entry.from, entry.to), entry);
+        }
+    }
+
+    public boolean contains(BlockPos a, BlockPos b) {
+        return entries.containsKey(PairKey.of(a, b));
+    }
+
+    public Entry get(BlockPos a, BlockPos b) {
+        return entries.get(PairKey.of(a, b));
+    }
+
+    // adds a planned connection, returns false if the pair is already connected or planned
+    public boolean add(BlockPos from, BlockPos to, long tick) {
+        return entries.putIfAbsent(PairKey.of(from, to), new Entry(from, to, Records.ConnectionStatus.PLANNED, 0, tick, tick)) == null;
+    }
+
+    public boolean remove(BlockPos a, BlockPos b) {
+        return entries.remove(PairKey.of(a, b)) != null;
+    }
+
+    /**
+     * Changes the status of the pair's connection, counting every start of generation as an attempt.
+     * Returns false if the pair is not registered.
+     */
+    public boolean setStatus(BlockPos a, BlockPos b, Records.ConnectionStatus status, long tick) {
+        Entry entry = entries.get(PairKey.of(a, b));
+        if (entry == null) {
+            return false;
+        }
+        if (status == Records.ConnectionStatus.GENERATING) {
+            entry.attempts++;
+        }
+        entry.status = status;
+        entry.updatedTick = tick;
+        return true;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // connections in insertion order, as a new list
+    public List<Records.StructureConnection> connections() {
+        List<Records.StructureConnection> connections = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            connections.add(entry.toConnection());
+        }
+        return connections;
+    }
+
+    public List<Entry> entriesWithStatus(Records.ConnectionStatus status) {
+        List<Entry> matching = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.status == status) {
+                matching.add(entry);
+            }
+        }
+        return matching;
+    }
+
+    public List<Records.StructureConnection> connectionsWithStatus(Records.ConnectionStatus status) {
+        List<Records.StructureConnection> connections = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.status == status) {
+                connections.add(entry.toConnection());
+            }
+        }
+        return connections;
+    }
+
+    private List<Entry> entryList() {
+        return new ArrayList<>(entries.values());
+    }
+}
@@ -2,12 +2,12 @@ package net.countered.settlementroads.helpers;
 
 import com.mojang.serialization.Codec;
 import com.mojang.serialization.codecs.RecordCodecBuilder;
+import net.countered.settlementroads.persistence.RoadDataCodec;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Vec3i;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class Records {
@@ -16,13 +16,18 @@ public class Records {
 
     public record RoadDecoration(BlockPos placePos, Vec3i vector, int centerBlockCount, String signText, boolean isStart) {}
 
-    public record RoadData(int width, int roadType, List<BlockState> materials, List<RoadSegmentPlacement> roadSegmentList) {
-        public static final Codec<RoadData> CODEC = RecordCodecBuilder.create(instance -> instance.group(
-                Codec.INT.fieldOf("width").forGetter(RoadData::width),
-                Codec.INT.fieldOf("road_type").forGetter(RoadData::roadType),
-                BlockState.CODEC.listOf().fieldOf("materials").forGetter(RoadData::materials),
-                RoadSegmentPlacement.CODEC.listOf().fieldOf("placements").forGetter(RoadData::roadSegmentList)
-        ).apply(instance, RoadData::new));
+    // saved through RoadDataCodec
+    public record RoadData(int width, int roadType, List<BlockState> materials, List<RoadSegmentPlacement> roadSegmentList) {}
+
+    // contiguous slice of a road stored in one region shard, starting at segment firstIndex of totalSegments
+    // roadSeq is the journal sequence number of the whole road, 0 for pieces stored before it was recorded
+    public record RoadPiece(int firstIndex, int totalSegments, RoadData road, long roadSeq) {
+        public static final Codec<RoadPiece> CODEC = RecordCodecBuilder.create(instance -> instance.group(
+                Codec.INT.fieldOf("first_index").forGetter(RoadPiece::firstIndex),
+                Codec.INT.fieldOf("total_segments").forGetter(RoadPiece::totalSegments),
+                RoadDataCodec.CODEC.fieldOf("road").forGetter(RoadPiece::road),
+                Codec.LONG.optionalFieldOf("road_seq", 0L).forGetter(RoadPiece::roadSeq)
+        ).apply(instance, RoadPiece::new));
     }
 
     public record RoadSegmentPlacement(BlockPos middlePos, List<BlockPos> positions) {
@@ -32,13 +37,19 @@ public class Records {
         ).apply(instance, RoadSegmentPlacement::new));
     }
 
-    public record StructureLocationData(List<BlockPos> structureLocations) {
+    // saved as a plain position list, duplicates from older saves are dropped when loading
+    public record StructureLocationData(StructureIndex index) {
         public StructureLocationData(List<BlockPos> structureLocations) {
-            this.structureLocations = new ArrayList<>(structureLocations); // mutable copy
+            this(new StructureIndex(structureLocations));
+        }
+
+        public List<BlockPos> structureLocations() {
+            return index.positions();
         }
 
-        public void addStructure(BlockPos pos) {
-            structureLocations.add(pos);
+        // returns false if the structure is already known
+        public boolean addStructure(BlockPos pos) {
+            return index.add(pos);
         }
 
         public static final Codec<StructureLocationData> CODEC = BlockPos.CODEC
@@ -69,4 +80,13 @@ public class Records {
         COMPLETED,    // 已完成（绿色，不显示连接线）
         FAILED        // 生成失败（红色）
     }
+
+    // why a road search gave up, decides whether and how a failed connection is retried
+    public enum FailureReason {
+        BUDGET_EXHAUSTED, // 步数用尽
+        WATER_LOCKED,     // 步数用尽且大部分搜索区域为水域
+        HEIGHT_LIMIT,     // 高度差或地形限制使终点不可达
+        CORRIDOR_BLOCKED, // 分层搜索在粗略网格或分段范围内无路可走，会按退避时间重试
+        OTHER
+    }
 }
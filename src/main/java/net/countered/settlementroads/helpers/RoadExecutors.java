@@ -0,0 +1,188 @@
+package net.countered.settlementroads.helpers;
+
+import net.countered.settlementroads.SettlementRoads;
+import net.countered.settlementroads.config.ModConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Owns the mod's worker threads. Road searches run on a bounded pool of low priority platform threads sized
+ * from the core count and {@link ModConfig#maxConcurrentRoadGeneration}. Work that should not queue behind the
+ * searches, the background compaction of road region files and structure placement prediction, runs on a separate
+ * executor that, depending on {@link ModConfig#executorMode}, is either a small platform pool or a bounded set of
+ * virtual threads. Only the region file writes block on I/O.
+ * Both reject work once their queue is full and count rejections. They are created when the server starts,
+ * so changed executor settings take effect on the next server start.
+ */
+public class RoadExecutors {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
+
+    private static final int IO_PLATFORM_THREADS = 2;
+    private static final long SHUTDOWN_WAIT_MILLIS = 2000;
+
+    public record Stats(String name, int active, int queued, long completed, long rejected) {}
+
+    // handed out while the executors are not running, so late work is rejected instead of starting new threads
+    private static final Executor STOPPED = task -> {
+        throw new RejectedExecutionException("SettlementRoads executors are not running");
+    };
+
+    private static volatile BoundedExecutor compute;
+    private static volatile BoundedExecutor io;
+
+    public static synchronized void start() {
+        if (compute != null && !compute.isShutdown() && io != null && !io.isShutdown()) {
+            return;
+        }
+        int threads = computeThreads();
+        int queueSize = ModConfig.executorQueueSize;
+        compute = BoundedExecutor.platform("SettlementRoads-Road", threads, queueSize);
+        io = ModConfig.executorMode == ModConfig.ExecutorMode.VIRTUAL
+                ? BoundedExecutor.virtual("SettlementRoads-IO", queueSize)
+                : BoundedExecutor.platform("SettlementRoads-IO", IO_PLATFORM_THREADS, queueSize);
+        LOGGER.debug("SettlementRoads: executors started, {} road threads, {} I/O mode", threads, ModConfig.executorMode);
+    }
+
+    // stops accepting work, lets queued work finish for a short while, then interrupts the rest
+    public static synchronized void shutdown() {
+        for (BoundedExecutor executor : new BoundedExecutor[]{compute, io}) {
+            if (executor == null) continue;
+            LOGGER.debug("SettlementRoads: executor stats {}", executor.getStats());
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(SHUTDOWN_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        compute = null;
+        io = null;
+    }
+
+    // executor for CPU bound road work, rejects everything outside of start() and shutdown()
+    public static Executor compute() {
+        BoundedExecutor executor = compute;
+        return executor != null ? executor : STOPPED;
+    }
+
+    // executor for region file writes and structure prediction, rejects like compute()
+    public static Executor io() {
+        BoundedExecutor executor = io;
+        return executor != null ? executor : STOPPED;
+    }
+
+    public static Stats[] getStats() {
+        BoundedExecutor computeExecutor = compute;
+        BoundedExecutor ioExecutor = io;
+        return new Stats[]{
+                computeExecutor != null ? computeExecutor.getStats() : new Stats("SettlementRoads-Road", 0, 0, 0, 0),
+                ioExecutor != null ? ioExecutor.getStats() : new Stats("SettlementRoads-IO", 0, 0, 0, 0)
+        };
+    }
+
+    private static int computeThreads() {
+        if (ModConfig.executorThreads > 0) {
+            return ModConfig.executorThreads;
+        }
+        // 保留一个核心给服务器主线程
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cores - 1, ModConfig.maxConcurrentRoadGeneration));
+    }
+
+    /**
+     * Executor with a bounded backlog and counters for completed and rejected tasks.
+     */
+    private static final class BoundedExecutor implements Executor {
+        private final String name;
+        private final ExecutorService delegate;
+        // platform mode bounds through the pool's queue, virtual mode through these permits
+        private final Semaphore permits;
+        private final ThreadPoolExecutor pool;
+        private final AtomicInteger active = new AtomicInteger();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        private BoundedExecutor(String name, ExecutorService delegate, ThreadPoolExecutor pool, Semaphore permits) {
+            this.name = name;
+            this.delegate = delegate;
+            this.pool = pool;
+            this.permits = permits;
+        }
+
+        static BoundedExecutor platform(String name, int threads, int queueSize) {
+            AtomicInteger threadIndex = new AtomicInteger();
+            ThreadFactory factory = runnable -> {
+                Thread thread = new Thread(runnable, name + "-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            };
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueSize), factory, new ThreadPoolExecutor.AbortPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            return new BoundedExecutor(name, pool, pool, null);
+        }
+
+        static BoundedExecutor virtual(String name, int maxTasks) {
+            ThreadFactory factory = Thread.ofVirtual().name(name + "-", 1).factory();
+            return new BoundedExecutor(name, Executors.newThreadPerTaskExecutor(factory), null, new Semaphore(maxTasks));
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (permits != null && !permits.tryAcquire()) {
+                rejected.increment();
+                throw new RejectedExecutionException(name + " is saturated");
+            }
+            try {
+                delegate.execute(() -> {
+                    active.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        active.decrementAndGet();
+                        completed.increment();
+                        if (permits != null) {
+                            permits.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                if (permits != null) {
+                    permits.release();
+                }
+                throw e;
+            }
+        }
+
+        boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        void shutdown() {
+            delegate.shutdown();
+        }
+
+        void shutdownNow() {
+            delegate.shutdownNow();
+        }
+
+        boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+
+        Stats getStats() {
+            int queued = pool != null ? pool.getQueue().size() : 0;
+            return new Stats(name, active.get(), queued, completed.sum(), rejected.sum());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package net.countered.settlementroads.helpers;
+
+import net.minecraft.util.math.BlockPos;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the planned roads close to the relative neighbourhood graph (RNG) of the known structures.
+ * Two structures are linked when no third structure is closer to both of them than they are to each other.
+ * The RNG contains the Euclidean minimum spanning tree, so every structure stays reachable, while it avoids
+ * the long parallel roads that pairing each structure with its nearest neighbour produces.
+ * Insertion is incremental: only the new structure's edges and the planned edges it cuts are computed.
+ * Distances are horizontal.
+ */
+public class RoadNetworkPlanner {
+
+    // nearest structures considered as neighbours and as lune witnesses for a new structure
+    private static final int CANDIDATES = 12;
+
+    public record Plan(List<BlockPos> neighbours, List<Records.StructureConnection> superseded) {}
+
+    /**
+     * Plans the insertion of structure into the network. The structure must already be in the index.
+     * Superseded connections are taken from the given planned connections only, roads that already started
+     * or finished are never replaced.
+     */
+    public static Plan planInsertion(StructureIndex index, BlockPos structure, List<Records.StructureConnection> plannedConnections) {
+        List<BlockPos> candidates = index.nearest(structure, CANDIDATES);
+        List<BlockPos> neighbours = new ArrayList<>();
+        for (BlockPos candidate : candidates) {
+            long edge = distanceSq(structure, candidate);
+            boolean blocked = false;
+            for (BlockPos witness : candidates) {
+                if (witness == candidate) continue;
+                if (distanceSq(structure, witness) < edge && distanceSq(candidate, witness) < edge) {
+                    blocked = true;
+                    break;
+                }
+            }
+            if (!blocked) {
+                neighbours.add(candidate);
+            }
+        }
+
+        // 新结构落在旧连接的"月牙"区域内时，旧连接不再属于图
+        List<Records.StructureConnection> superseded = new ArrayList<>();
+        for (Records.StructureConnection connection : plannedConnections) {
+            if (connection.from().equals(structure) || connection.to().equals(structure)) continue;
+            long edge = distanceSq(connection.from(), connection.to());
+            if (distanceSq(connection.from(), structure) < edge && distanceSq(connection.to(), structure) < edge) {
+                superseded.add(connection);
+            }
+        }
+        return new Plan(neighbours, superseded);
+    }
+
+    private static long distanceSq(BlockPos a, BlockPos b) {
+        long dx = a.getX() - b.getX();
+        long dz = a.getZ() - b.getZ();
+        return dx * dx + dz * dz;
+    }
+}
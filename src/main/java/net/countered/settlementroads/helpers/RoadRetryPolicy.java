@@ -0,0 +1,103 @@
+package net.countered.settlementroads.helpers;
+
+import net.countered.settlementroads.SettlementRoads;
+import net.countered.settlementroads.config.ModConfig;
+import net.countered.settlementroads.persistence.RoadCommitQueue;
+import net.countered.settlementroads.persistence.attachments.WorldDataAttachment;
+import net.minecraft.server.world.ServerWorld;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+
+/**
+ * Decides when a failed connection is searched again. Failures are remembered per connection together with
+ * their reason and a hash of the search settings, so a pair is only retried after an exponentially growing
+ * delay, and roads blocked by the height and stability limits are not retried until those settings change.
+ * The step budget is only raised for searches that ran out of steps after getting close to their goal.
+ * Server thread only.
+ */
+public class RoadRetryPolicy {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
+
+    private static final int CHECK_INTERVAL_TICKS = 100;
+    private static final int MAX_BACKOFF_SHIFT = 6;
+    private static final int MAX_BUDGET_LEVEL = 2;
+    // a search that covered this share of the distance before running out of steps is likely to finish with more
+    private static final float ESCALATE_PROGRESS = 0.5f;
+
+    private static int ticksUntilCheck;
+
+    // settings that change which roads a search can find
+    public static int configHash() {
+        return Objects.hash(ModConfig.maxHeightDifference, ModConfig.maxTerrainStability,
+                ModConfig.hierarchicalPathfindingDistance, ModConfig.hierarchicalClusterSize);
+    }
+
+    public static void recordFailure(ServerWorld serverWorld, Records.StructureConnection connection, Records.FailureReason reason, float progress) {
+        ConnectionRegistry registry = serverWorld.getAttachedOrCreate(WorldDataAttachment.CONNECTED_STRUCTURES, ConnectionRegistry::new);
+        long tick = serverWorld.getTime();
+        if (!registry.setStatus(connection.from(), connection.to(), Records.ConnectionStatus.FAILED, tick)) {
+            return;
+        }
+        ConnectionRegistry.Entry entry = registry.get(connection.from(), connection.to());
+        int hash = configHash();
+        if (entry.failureConfigHash != hash) {
+            entry.budgetLevel = 0;
+            entry.failures = 0;
+        }
+        else if (entry.failureReason != reason) {
+            entry.failures = 0;
+        }
+        entry.failures++;
+        entry.failureReason = reason;
+        entry.failureConfigHash = hash;
+        if (reason == Records.FailureReason.BUDGET_EXHAUSTED && progress >= ESCALATE_PROGRESS && entry.budgetLevel < MAX_BUDGET_LEVEL) {
+            entry.budgetLevel++;
+        }
+        // 高度限制导致的失败在配置不变时重试也不会成功
+        entry.retryTick = reason == Records.FailureReason.HEIGHT_LIMIT ? Long.MAX_VALUE : tick + backoffTicks(entry.failures);
+        LOGGER.debug("Road {} -> {} failed ({}), failure {} at {}% progress, budget level {}",
+                connection.from(), connection.to(), reason, entry.failures, (int) (progress * 100), entry.budgetLevel);
+    }
+
+    // re-queues failed connections whose backoff has expired or whose settings changed since they failed
+    public static void tick(ServerWorld serverWorld) {
+        if (--ticksUntilCheck > 0) {
+            return;
+        }
+        ticksUntilCheck = CHECK_INTERVAL_TICKS;
+        ConnectionRegistry registry = serverWorld.getAttached(WorldDataAttachment.CONNECTED_STRUCTURES);
+        if (registry == null) {
+            return;
+        }
+        int hash = configHash();
+        long tick = serverWorld.getTime();
+        boolean changed = false;
+        for (ConnectionRegistry.Entry entry : registry.entriesWithStatus(Records.ConnectionStatus.FAILED)) {
+            if (entry.failureConfigHash == hash && tick < entry.retryTick) continue;
+            registry.setStatus(entry.from(), entry.to(), Records.ConnectionStatus.PLANNED, tick);
+            RoadScheduler.enqueue(entry.toConnection());
+            changed = true;
+        }
+        if (changed) {
+            RoadCommitQueue.markDirty(serverWorld);
+        }
+    }
+
+    // step budget for the next search of the connection
+    public static int budgetFor(ServerWorld serverWorld, Records.StructureConnection connection, int baseSteps) {
+        ConnectionRegistry registry = serverWorld.getAttached(WorldDataAttachment.CONNECTED_STRUCTURES);
+        ConnectionRegistry.Entry entry = registry != null ? registry.get(connection.from(), connection.to()) : null;
+        return entry != null ? baseSteps << entry.budgetLevel : baseSteps;
+    }
+
+    public static void clear() {
+        ticksUntilCheck = 0;
+    }
+
+    private static long backoffTicks(int failures) {
+        return ModConfig.failedRoadRetryMinutes * 1200L << Math.min(failures - 1, MAX_BACKOFF_SHIFT);
+    }
+}
@@ -0,0 +1,228 @@
+package net.countered.settlementroads.helpers;
+
+import net.countered.settlementroads.SettlementRoads;
+import net.countered.settlementroads.config.ModConfig;
+import net.countered.settlementroads.persistence.RoadCommitQueue;
+import net.countered.settlementroads.persistence.attachments.WorldDataAttachment;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Orders pending structure connections so that roads players are about to reach are generated first.
+ * A connection scores by its distance to the closest online player, measured both from where the player stands
+ * and from where their recent movement points; the lowest score starts next. Scores are refreshed every
+ * {@link #RERANK_INTERVAL_TICKS} ticks as players move. Without players the queue falls back to FIFO order.
+ * Server thread only, apart from {@link #getReport()}.
+ */
+public class RoadScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
+
+    private static final int RERANK_INTERVAL_TICKS = 20;
+    // blocks ahead of a moving player that count as "about to be generated"
+    private static final double LOOKAHEAD = 256;
+    // squared blocks per rerank interval below which a player counts as standing still
+    private static final double MIN_MOVEMENT_SQ = 4;
+
+    public record Report(int pending, int running, int limit, double bestDistance, int trackedPlayers) {}
+
+    private static final class Pending {
+        final Records.StructureConnection connection;
+        final long order;
+        double score;
+
+        Pending(Records.StructureConnection connection, long order) {
+            this.connection = connection;
+            this.order = order;
+            this.score = Double.MAX_VALUE;
+        }
+    }
+
+    private record PlayerTrack(double x, double z, double dirX, double dirZ) {}
+
+    private static final List<Pending> pending = new ArrayList<>();
+    private static final Map<UUID, PlayerTrack> players = new HashMap<>();
+    private static long nextOrder;
+    private static int ticksUntilRerank;
+    private static int lastRunning;
+    private static volatile Report report = new Report(0, 0, 0, -1, 0);
+
+    public static void enqueue(Records.StructureConnection connection) {
+        Pending entry = new Pending(connection, nextOrder++);
+        entry.score = score(connection);
+        pending.add(entry);
+        updateReport();
+    }
+
+    // drops a connection that has not started yet, returns false if it is not pending
+    public static boolean remove(Records.StructureConnection connection) {
+        int index = indexOf(connection);
+        if (index < 0) {
+            return false;
+        }
+        pending.remove(index);
+        updateReport();
+        return true;
+    }
+
+    /**
+     * Queues the connections an earlier session left unfinished, the queue itself is not saved.
+     * Connections still marked as generating were interrupted by a crash and are put back to planned first.
+     */
+    public static void restore(ServerWorld serverWorld) {
+        ConnectionRegistry registry = serverWorld.getAttached(WorldDataAttachment.CONNECTED_STRUCTURES);
+        if (registry == null) {
+            return;
+        }
+        long tick = serverWorld.getTime();
+        List<ConnectionRegistry.Entry> interrupted = registry.entriesWithStatus(Records.ConnectionStatus.GENERATING);
+        for (ConnectionRegistry.Entry entry : interrupted) {
+            registry.setStatus(entry.from(), entry.to(), Records.ConnectionStatus.PLANNED, tick);
+        }
+        if (!interrupted.isEmpty()) {
+            RoadCommitQueue.markDirty(serverWorld);
+        }
+        int restored = 0;
+        for (Records.StructureConnection connection : registry.connectionsWithStatus(Records.ConnectionStatus.PLANNED)) {
+            if (indexOf(connection) < 0) {
+                enqueue(connection);
+                restored++;
+            }
+        }
+        if (restored > 0) {
+            LOGGER.debug("Restored {} planned roads, {} of them were interrupted", restored, interrupted.size());
+        }
+    }
+
+    public static boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    // refreshes player movement and connection scores at a fixed interval
+    public static void tick(ServerWorld serverWorld) {
+        if (--ticksUntilRerank > 0) {
+            return;
+        }
+        ticksUntilRerank = RERANK_INTERVAL_TICKS;
+        trackPlayers(serverWorld);
+        for (Pending entry : pending) {
+            entry.score = score(entry.connection);
+        }
+        pending.sort(Comparator.comparingDouble((Pending entry) -> entry.score).thenComparingLong(entry -> entry.order));
+        updateReport();
+    }
+
+    /**
+     * Removes and returns the best ranked connection, or null if the queue is empty
+     * or running tasks already reach {@link ModConfig#maxConcurrentRoadGeneration}.
+     */
+    public static Records.StructureConnection pollNext(int running) {
+        lastRunning = running;
+        if (pending.isEmpty() || running >= ModConfig.maxConcurrentRoadGeneration) {
+            updateReport();
+            return null;
+        }
+        int best = 0;
+        for (int i = 1; i < pending.size(); i++) {
+            Pending candidate = pending.get(i);
+            Pending current = pending.get(best);
+            if (candidate.score < current.score || candidate.score == current.score && candidate.order < current.order) {
+                best = i;
+            }
+        }
+        Pending next = pending.remove(best);
+        if (next.score != Double.MAX_VALUE) {
+            LOGGER.debug("Scheduling road {} -> {} at distance {}", next.connection.from(), next.connection.to(), (int) next.score);
+        }
+        updateReport();
+        return next.connection;
+    }
+
+    public static Report getReport() {
+        return report;
+    }
+
+    public static void clear() {
+        pending.clear();
+        players.clear();
+        ticksUntilRerank = 0;
+        lastRunning = 0;
+        updateReport();
+    }
+
+    private static void trackPlayers(ServerWorld serverWorld) {
+        Map<UUID, PlayerTrack> updated = new HashMap<>();
+        for (ServerPlayerEntity player : serverWorld.getPlayers()) {
+            if (player.isSpectator()) continue;
+            double x = player.getX();
+            double z = player.getZ();
+            PlayerTrack previous = players.get(player.getUuid());
+            double dirX = 0, dirZ = 0;
+            if (previous != null) {
+                double moveX = x - previous.x();
+                double moveZ = z - previous.z();
+                double lengthSq = moveX * moveX + moveZ * moveZ;
+                if (lengthSq > MIN_MOVEMENT_SQ) {
+                    double length = Math.sqrt(lengthSq);
+                    // 平滑方向，避免玩家转身时排名剧烈跳动
+                    dirX = previous.dirX() * 0.5 + moveX / length * 0.5;
+                    dirZ = previous.dirZ() * 0.5 + moveZ / length * 0.5;
+                }
+            }
+            updated.put(player.getUuid(), new PlayerTrack(x, z, dirX, dirZ));
+        }
+        players.clear();
+        players.putAll(updated);
+    }
+
+    private static double score(Records.StructureConnection connection) {
+        double best = Double.MAX_VALUE;
+        for (PlayerTrack player : players.values()) {
+            best = Math.min(best, distanceToConnection(connection, player.x(), player.z()));
+            double dirLength = Math.sqrt(player.dirX() * player.dirX() + player.dirZ() * player.dirZ());
+            if (dirLength > 0) {
+                double aheadX = player.x() + player.dirX() / dirLength * LOOKAHEAD;
+                double aheadZ = player.z() + player.dirZ() / dirLength * LOOKAHEAD;
+                best = Math.min(best, distanceToConnection(connection, aheadX, aheadZ));
+            }
+        }
+        return best;
+    }
+
+    // horizontal distance from (x, z) to the straight line between the two structures
+    private static double distanceToConnection(Records.StructureConnection connection, double x, double z) {
+        BlockPos from = connection.from();
+        BlockPos to = connection.to();
+        double dx = to.getX() - from.getX();
+        double dz = to.getZ() - from.getZ();
+        double lengthSq = dx * dx + dz * dz;
+        double t = lengthSq == 0 ? 0 : Math.max(0, Math.min(1, ((x - from.getX()) * dx + (z - from.getZ()) * dz) / lengthSq));
+        return Math.hypot(x - (from.getX() + t * dx), z - (from.getZ() + t * dz));
+    }
+
+    private static int indexOf(Records.StructureConnection connection) {
+        for (int i = 0; i < pending.size(); i++) {
+            Records.StructureConnection candidate = pending.get(i).connection;
+            if ((candidate.from().equals(connection.from()) && candidate.to().equals(connection.to())) ||
+                    (candidate.from().equals(connection.to()) && candidate.to().equals(connection.from()))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void updateReport() {
+        double bestDistance = -1;
+        for (Pending entry : pending) {
+            if (entry.score != Double.MAX_VALUE && (bestDistance < 0 || entry.score < bestDistance)) {
+                bestDistance = entry.score;
+            }
+        }
+        report = new Report(pending.size(), lastRunning, ModConfig.maxConcurrentRoadGeneration, bestDistance, players.size());
+    }
+}
@@ -1,75 +1,58 @@
 package net.countered.settlementroads.helpers;
 
 import net.countered.settlementroads.SettlementRoads;
+import net.countered.settlementroads.persistence.RoadCommitQueue;
 import net.countered.settlementroads.persistence.attachments.WorldDataAttachment;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.math.BlockPos;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
 
 public class StructureConnector {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
-    public static Queue<Records.StructureConnection> cachedStructureConnections = new ArrayDeque<>();
     
     public static void cacheNewConnection(ServerWorld serverWorld, boolean locateAtPlayer) {
-        StructureLocator.locateConfiguredStructure(serverWorld, 1, locateAtPlayer);
-        List<BlockPos> villagePosList = serverWorld.getAttached(WorldDataAttachment.STRUCTURE_LOCATIONS).structureLocations();
-        if (villagePosList == null || villagePosList.size() < 2) {
-            return;
-        }
-        createNewStructureConnection(serverWorld);
+        cacheNewConnections(serverWorld, locateAtPlayer, 1);
     }
 
-    private static void createNewStructureConnection(ServerWorld serverWorld) {
-        List<BlockPos> villagePosList = serverWorld.getAttached(WorldDataAttachment.STRUCTURE_LOCATIONS).structureLocations();
-        BlockPos latestVillagePos = villagePosList.get(villagePosList.size() - 1);
-        Records.StructureLocationData structureLocationData = serverWorld.getAttached(WorldDataAttachment.STRUCTURE_LOCATIONS);
-        List<BlockPos> worldStructureLocations = structureLocationData.structureLocations();
-
-        BlockPos closestVillage = findClosestStructure(latestVillagePos, worldStructureLocations);
-
-        if (closestVillage != null) {
-            List<Records.StructureConnection> connections = new ArrayList<>(
-                    serverWorld.getAttachedOrCreate(WorldDataAttachment.CONNECTED_STRUCTURES, ArrayList::new)
-            );
-            if (!connectionExists(connections, latestVillagePos, closestVillage)) {
-                Records.StructureConnection structureConnection = new Records.StructureConnection(latestVillagePos, closestVillage);
-                connections.add(structureConnection);
-                serverWorld.setAttached(WorldDataAttachment.CONNECTED_STRUCTURES, connections);
-                cachedStructureConnections.add(structureConnection);
+    // locates structures asynchronously and links each new one into the road network
+    public static void cacheNewConnections(ServerWorld serverWorld, boolean locateAtPlayer, int count) {
+        StructureLocator.locateConfiguredStructure(serverWorld, count, locateAtPlayer, structurePos -> {
+            List<BlockPos> villagePosList = serverWorld.getAttached(WorldDataAttachment.STRUCTURE_LOCATIONS).structureLocations();
+            if (villagePosList == null || villagePosList.size() < 2) {
+                return;
             }
-        }
+            createNewStructureConnection(serverWorld, structurePos);
+        });
     }
 
-    private static boolean connectionExists(List<Records.StructureConnection> existingConnections, BlockPos a, BlockPos b) {
-        for (Records.StructureConnection connection : existingConnections) {
-            if ((connection.from().equals(a) && connection.to().equals(b)) ||
-                    (connection.to().equals(b) && connection.from().equals(a))) {
-                return true;
+    // links the new structure into the road network and drops planned roads it makes redundant
+    private static void createNewStructureConnection(ServerWorld serverWorld, BlockPos latestVillagePos) {
+        Records.StructureLocationData structureLocationData = serverWorld.getAttached(WorldDataAttachment.STRUCTURE_LOCATIONS);
+        ConnectionRegistry connections = serverWorld.getAttachedOrCreate(WorldDataAttachment.CONNECTED_STRUCTURES, ConnectionRegistry::new);
+        RoadNetworkPlanner.Plan plan = RoadNetworkPlanner.planInsertion(structureLocationData.index(), latestVillagePos,
+                connections.connectionsWithStatus(Records.ConnectionStatus.PLANNED));
+
+        boolean changed = false;
+        for (Records.StructureConnection superseded : plan.superseded()) {
+            // 只移除尚未开始生成的连接
+            if (RoadScheduler.remove(superseded)) {
+                connections.remove(superseded.from(), superseded.to());
+                changed = true;
+                LOGGER.debug("Road {} -> {} superseded by {}", superseded.from(), superseded.to(), latestVillagePos);
             }
         }
-        return false;
-    }
-
-    private static BlockPos findClosestStructure(BlockPos currentVillage, List<BlockPos> allVillages) {
-        BlockPos closestVillage = null;
-        double minDistance = Double.MAX_VALUE;
-
-        for (BlockPos village : allVillages) {
-            if (!village.equals(currentVillage)) {
-                double distance = currentVillage.getSquaredDistance(village);
-                if (distance < minDistance) {
-                    minDistance = distance;
-                    closestVillage = village;
-                }
+        for (BlockPos neighbour : plan.neighbours()) {
+            if (connections.add(latestVillagePos, neighbour, serverWorld.getTime())) {
+                RoadScheduler.enqueue(new Records.StructureConnection(latestVillagePos, neighbour));
+                changed = true;
             }
         }
-        return closestVillage;
+        if (changed) {
+            RoadCommitQueue.markDirty(serverWorld);
+        }
     }
 }
@@ -0,0 +1,113 @@
+package net.countered.settlementroads.helpers;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+
+import java.util.*;
+
+/**
+ * Known structure positions bucketed into a uniform grid of {@link #CELL_SIZE} block cells.
+ * Nearest and k-nearest queries search rings of cells outwards from the query and stop once the next ring
+ * cannot hold anything closer, so their cost depends on the local density rather than the total count.
+ * Positions are unique and keep their insertion order for {@link #positions()}. Not thread safe.
+ */
+public class StructureIndex {
+
+    // roughly one village placement cell (34 chunks), so most cells hold at most one structure
+    private static final int CELL_SHIFT = 9;
+    private static final int CELL_SIZE = 1 << CELL_SHIFT;
+
+    private final List<BlockPos> positions = new ArrayList<>();
+    private final List<BlockPos> positionsView = Collections.unmodifiableList(positions);
+    private final LongSet known = new LongOpenHashSet();
+    private final Long2ObjectOpenHashMap<List<BlockPos>> cells = new Long2ObjectOpenHashMap<>();
+    private int minCellX = Integer.MAX_VALUE, maxCellX = Integer.MIN_VALUE;
+    private int minCellZ = Integer.MAX_VALUE, maxCellZ = Integer.MIN_VALUE;
+
+    public StructureIndex(Collection<BlockPos> positions) {
+        for (BlockPos pos : positions) {
+            add(pos);
+        }
+    }
+
+    // returns false if the position is already known
+    public boolean add(BlockPos pos) {
+        if (!known.add(pos.asLong())) {
+            return false;
+        }
+        BlockPos immutable = pos.toImmutable();
+        positions.add(immutable);
+        int cellX = pos.getX() >> CELL_SHIFT;
+        int cellZ = pos.getZ() >> CELL_SHIFT;
+        cells.computeIfAbsent(ChunkPos.toLong(cellX, cellZ), key -> new ArrayList<>(1)).add(immutable);
+        minCellX = Math.min(minCellX, cellX);
+        maxCellX = Math.max(maxCellX, cellX);
+        minCellZ = Math.min(minCellZ, cellZ);
+        maxCellZ = Math.max(maxCellZ, cellZ);
+        return true;
+    }
+
+    public boolean contains(BlockPos pos) {
+        return known.contains(pos.asLong());
+    }
+
+    public int size() {
+        return positions.size();
+    }
+
+    // all positions in insertion order, read only
+    public List<BlockPos> positions() {
+        return positionsView;
+    }
+
+    /**
+     * Closest known position to center by squared distance, ignoring center itself, or null if there is none.
+     */
+    public BlockPos nearest(BlockPos center) {
+        List<BlockPos> result = nearest(center, 1);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Up to k known positions closest to center, nearest first, ignoring center itself.
+     */
+    public List<BlockPos> nearest(BlockPos center, int k) {
+        if (k <= 0 || positions.isEmpty()) {
+            return List.of();
+        }
+        // max-heap on distance, the head is the worst of the current candidates
+        PriorityQueue<BlockPos> best = new PriorityQueue<>(k + 1,
+                Comparator.comparingDouble((BlockPos pos) -> pos.getSquaredDistance(center)).reversed());
+        int centerCellX = center.getX() >> CELL_SHIFT;
+        int centerCellZ = center.getZ() >> CELL_SHIFT;
+        int maxRing = Math.max(Math.max(centerCellX - minCellX, maxCellX - centerCellX),
+                Math.max(centerCellZ - minCellZ, maxCellZ - centerCellZ));
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // cells of this ring are at least (ring - 1) cells away horizontally
+            if (ring > 1 && best.size() == k) {
+                double ringDistance = (double) (ring - 1) * CELL_SIZE;
+                if (ringDistance * ringDistance > best.peek().getSquaredDistance(center)) break;
+            }
+            for (int cellX = centerCellX - ring; cellX <= centerCellX + ring; cellX++) {
+                boolean edgeX = cellX == centerCellX - ring || cellX == centerCellX + ring;
+                // inner columns only contribute their top and bottom cell
+                int step = edgeX || ring == 0 ? 1 : 2 * ring;
+                for (int cellZ = centerCellZ - ring; cellZ <= centerCellZ + ring; cellZ += step) {
+                    List<BlockPos> cell = cells.get(ChunkPos.toLong(cellX, cellZ));
+                    if (cell == null) continue;
+                    for (BlockPos pos : cell) {
+                        if (pos.equals(center)) continue;
+                        best.add(pos);
+                        if (best.size() > k) best.poll();
+                    }
+                }
+            }
+        }
+        List<BlockPos> result = new ArrayList<>(best);
+        result.sort(Comparator.comparingDouble(pos -> pos.getSquaredDistance(center)));
+        return result;
+    }
+}
@@ -0,0 +1,203 @@
+package net.countered.settlementroads.helpers;
+
+import com.mojang.brigadier.StringReader;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import com.mojang.datafixers.util.Pair;
+import net.countered.settlementroads.SettlementRoads;
+import net.countered.settlementroads.config.ModConfig;
+import net.countered.settlementroads.persistence.attachments.WorldDataAttachment;
+import net.minecraft.command.argument.RegistryPredicateArgumentType;
+import net.minecraft.registry.Registry;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.registry.RegistryKeys;
+import net.minecraft.registry.entry.RegistryEntry;
+import net.minecraft.registry.entry.RegistryEntryList;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+import net.minecraft.world.gen.chunk.ChunkGenerator;
+import net.minecraft.world.gen.structure.Structure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Locates structures without stalling the server thread. Placement predictions are pure and run on the I/O
+ * executor; the vanilla search, which marks found structures as referenced in loaded chunks, stays on the server
+ * thread and runs one {@link ChunkGenerator#locateStructure} call per tick.
+ * Requests for the same world, structure and origin chunk that arrive while one is still running share its result.
+ * Results are handed back on the server thread.
+ */
+public class StructureLocateService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
+
+    private static final int SEARCH_RADIUS_CHUNKS = 100;
+    private static final int LOCATES_PER_TICK = 1;
+    // locate calls a vanilla search may spend per structure it still needs, calls can return already known ones
+    private static final int ATTEMPTS_PER_STRUCTURE = 2;
+
+    private record RequestKey(RegistryKey<World> world, String structure, long originChunk, int count) {}
+
+    private static final Map<RequestKey, CompletableFuture<List<BlockPos>>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    // vanilla searches in progress, server thread only
+    private static final Queue<LocateJob> JOBS = new ArrayDeque<>();
+
+    private static final class LocateJob {
+        final ServerWorld serverWorld;
+        final RegistryEntryList<Structure> structures;
+        final BlockPos origin;
+        final String structure;
+        final List<BlockPos> found;
+        final CompletableFuture<List<BlockPos>> future = new CompletableFuture<>();
+        int remaining;
+        int attemptsLeft;
+
+        LocateJob(ServerWorld serverWorld, RegistryEntryList<Structure> structures, BlockPos origin, String structure,
+                  List<BlockPos> found, int remaining) {
+            this.serverWorld = serverWorld;
+            this.structures = structures;
+            this.origin = origin;
+            this.structure = structure;
+            this.found = found;
+            this.remaining = remaining;
+            this.attemptsLeft = remaining * ATTEMPTS_PER_STRUCTURE;
+        }
+    }
+
+    /**
+     * Locates up to count structures around origin, one after another so each search skips the ones found before,
+     * and passes the found positions to the callback on the server thread. When the structure's placement can be
+     * predicted, the nearest predicted positions within {@link ModConfig#structurePredictionRadius} that are not
+     * known yet are used first, and the vanilla search only looks for the rest. Server thread only.
+     */
+    public static CompletableFuture<List<BlockPos>> locate(ServerWorld serverWorld, BlockPos origin, int count, Consumer<List<BlockPos>> callback) {
+        String structure = ModConfig.structureToLocate;
+        RequestKey key = new RequestKey(serverWorld.getRegistryKey(), structure, ChunkPos.toLong(origin.getX() >> 4, origin.getZ() >> 4), count);
+        CompletableFuture<List<BlockPos>> future = IN_FLIGHT.computeIfAbsent(key, k -> {
+            Optional<RegistryEntryList<Structure>> structures = resolve(serverWorld, structure);
+            if (structures.isEmpty()) {
+                return CompletableFuture.completedFuture(List.of());
+            }
+            if (!ModConfig.predictStructurePositions) {
+                return startVanilla(serverWorld, structures.get(), origin, structure, new ArrayList<>(), count);
+            }
+            CompletableFuture<List<BlockPos>> prediction;
+            try {
+                // one pass over the placement grid replaces the repeated scans when the placement is known
+                prediction = CompletableFuture.supplyAsync(() ->
+                        StructurePlacementPredictor.predict(serverWorld, structures.get(), origin, ModConfig.structurePredictionRadius), RoadExecutors.io());
+            } catch (RuntimeException e) {
+                LOGGER.debug("Structure prediction request rejected: {}", e.getMessage());
+                prediction = CompletableFuture.completedFuture(null);
+            }
+            return prediction.thenComposeAsync(predicted -> {
+                List<BlockPos> found = new ArrayList<>();
+                if (predicted != null) {
+                    // 预测结果按距离排序，跳过已知的结构，不够的部分交给原版搜索
+                    for (BlockPos pos : predicted) {
+                        if (found.size() >= count) break;
+                        if (!isKnown(serverWorld, pos)) {
+                            found.add(pos);
+                        }
+                    }
+                    LOGGER.debug("Predicted {} new of {} {} around {}", found.size(), predicted.size(), structure, origin);
+                }
+                return startVanilla(serverWorld, structures.get(), origin, structure, found, count - found.size());
+            }, serverWorld.getServer());
+        });
+        future.whenComplete((result, error) -> IN_FLIGHT.remove(key, future));
+        return future.thenApplyAsync(result -> {
+            callback.accept(result);
+            return result;
+        }, serverWorld.getServer());
+    }
+
+    public static int getInFlightCount() {
+        return IN_FLIGHT.size();
+    }
+
+    /**
+     * Advances the vanilla searches by {@link #LOCATES_PER_TICK} locate calls, one after another so each call skips
+     * the structures found before. Server thread only.
+     */
+    public static void tick() {
+        for (int i = 0; i < LOCATES_PER_TICK && !JOBS.isEmpty(); i++) {
+            LocateJob job = JOBS.peek();
+            Pair<BlockPos, RegistryEntry<Structure>> pair = null;
+            try {
+                pair = job.serverWorld.getChunkManager()
+                        .getChunkGenerator()
+                        .locateStructure(job.serverWorld, job.structures, job.origin, SEARCH_RADIUS_CHUNKS, true);
+            } catch (Exception e) {
+                LOGGER.error("Failed to locate {} around {}", job.structure, job.origin, e);
+            }
+            job.attemptsLeft--;
+            if (pair == null) {
+                LOGGER.debug("No more {} found around {}", job.structure, job.origin);
+                job.remaining = 0;
+            }
+            else if (!job.found.contains(pair.getFirst()) && !isKnown(job.serverWorld, pair.getFirst())) {
+                LOGGER.debug("Structure found at " + pair.getFirst());
+                job.found.add(pair.getFirst());
+                job.remaining--;
+            }
+            if (job.remaining <= 0 || job.attemptsLeft <= 0) {
+                JOBS.poll();
+                job.future.complete(job.found);
+            }
+        }
+    }
+
+    // completes the searches still waiting with what they found so far
+    public static void clear() {
+        LocateJob job;
+        while ((job = JOBS.poll()) != null) {
+            job.future.complete(job.found);
+        }
+    }
+
+    // searches for remaining more structures, the result also holds the ones already found
+    private static CompletableFuture<List<BlockPos>> startVanilla(ServerWorld serverWorld, RegistryEntryList<Structure> structures,
+                                                                   BlockPos origin, String structure, List<BlockPos> found, int remaining) {
+        if (remaining <= 0) {
+            return CompletableFuture.completedFuture(found);
+        }
+        LocateJob job = new LocateJob(serverWorld, structures, origin, structure, found, remaining);
+        JOBS.add(job);
+        return job.future;
+    }
+
+    private static boolean isKnown(ServerWorld serverWorld, BlockPos pos) {
+        Records.StructureLocationData locationData = serverWorld.getAttached(WorldDataAttachment.STRUCTURE_LOCATIONS);
+        return locationData != null && locationData.index().contains(pos);
+    }
+
+    private static Optional<RegistryEntryList<Structure>> resolve(ServerWorld serverWorld, String structure) {
+        try {
+            RegistryPredicateArgumentType.RegistryPredicate<Structure> predicate =
+                    new RegistryPredicateArgumentType<>(RegistryKeys.STRUCTURE).parse(new StringReader(structure));
+            Registry<Structure> registry = serverWorld.getRegistryManager().get(RegistryKeys.STRUCTURE);
+            Optional<? extends RegistryEntryList.ListBacked<Structure>> entries = predicate.getKey()
+                    .map(key -> registry.getEntry(key).map(entry -> RegistryEntryList.of(entry)), registry::getEntryList);
+            if (entries.isEmpty()) {
+                LOGGER.warn("Failed to locate structure: " + structure + " is not a known structure or structure tag");
+            }
+            return entries.map(list -> list);
+        } catch (CommandSyntaxException e) {
+            LOGGER.warn("Failed to locate structure: " + structure + " in dimension " + serverWorld.getRegistryKey().getValue() + " with exception: " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+}
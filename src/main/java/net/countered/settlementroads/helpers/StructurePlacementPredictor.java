@@ -0,0 +1,92 @@
+package net.countered.settlementroads.helpers;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.countered.settlementroads.SettlementRoads;
+import net.minecraft.registry.entry.RegistryEntry;
+import net.minecraft.registry.entry.RegistryEntryList;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.biome.Biome;
+import net.minecraft.world.biome.source.BiomeCoords;
+import net.minecraft.world.biome.source.BiomeSource;
+import net.minecraft.world.biome.source.util.MultiNoiseUtil;
+import net.minecraft.world.gen.chunk.ChunkGenerator;
+import net.minecraft.world.gen.chunk.placement.RandomSpreadStructurePlacement;
+import net.minecraft.world.gen.chunk.placement.StructurePlacement;
+import net.minecraft.world.gen.chunk.placement.StructurePlacementCalculator;
+import net.minecraft.world.gen.structure.Structure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Predicts structure starts from the random spread placement grid and the world seed instead of scanning with
+ * locateStructure. Each spacing cell holds at most one candidate chunk; a candidate is kept when the placement
+ * accepts it (frequency and exclusion zones) and the structure's biomes contain the biome at its center.
+ * The biome check samples the generator's biome source at sea level, so a few candidates may still fail to
+ * generate, e.g. when the jigsaw start ends up in another biome.
+ */
+public class StructurePlacementPredictor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
+
+    /**
+     * Returns the predicted structure positions within radiusChunks of center, nearest first,
+     * or null if any of the structures uses a placement other than random spread.
+     */
+    public static List<BlockPos> predict(ServerWorld serverWorld, RegistryEntryList<Structure> structures, BlockPos center, int radiusChunks) {
+        ChunkGenerator chunkGenerator = serverWorld.getChunkManager().getChunkGenerator();
+        StructurePlacementCalculator calculator = serverWorld.getChunkManager().getStructurePlacementCalculator();
+        BiomeSource biomeSource = chunkGenerator.getBiomeSource();
+        MultiNoiseUtil.MultiNoiseSampler noiseSampler = serverWorld.getChunkManager().getNoiseConfig().getMultiNoiseSampler();
+        int quartY = BiomeCoords.fromBlock(chunkGenerator.getSeaLevel());
+        long seed = calculator.getStructureSeed();
+
+        int centerChunkX = center.getX() >> 4;
+        int centerChunkZ = center.getZ() >> 4;
+        long radiusSq = (long) radiusChunks * radiusChunks;
+        LongSet seenChunks = new LongOpenHashSet();
+        List<BlockPos> predicted = new ArrayList<>();
+
+        for (RegistryEntry<Structure> structure : structures) {
+            RegistryEntryList<Biome> validBiomes = structure.value().getValidBiomes();
+            for (StructurePlacement placement : calculator.getPlacements(structure)) {
+                if (!(placement instanceof RandomSpreadStructurePlacement randomSpread)) {
+                    LOGGER.debug("Structure {} uses {}, falling back to locating", structure.getIdAsString(), placement.getType());
+                    return null;
+                }
+                int spacing = randomSpread.getSpacing();
+                int minCellX = Math.floorDiv(centerChunkX - radiusChunks, spacing);
+                int maxCellX = Math.floorDiv(centerChunkX + radiusChunks, spacing);
+                int minCellZ = Math.floorDiv(centerChunkZ - radiusChunks, spacing);
+                int maxCellZ = Math.floorDiv(centerChunkZ + radiusChunks, spacing);
+                for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+                    for (int cellZ = minCellZ; cellZ <= maxCellZ; cellZ++) {
+                        ChunkPos start = randomSpread.getStartChunk(seed, cellX * spacing, cellZ * spacing);
+                        long dx = start.x - centerChunkX;
+                        long dz = start.z - centerChunkZ;
+                        // village types share one placement, so the same start is checked against each type's biomes
+                        if (dx * dx + dz * dz > radiusSq || seenChunks.contains(start.toLong())) continue;
+                        if (!placement.shouldGenerate(calculator, start.x, start.z)) continue;
+                        RegistryEntry<Biome> biome = biomeSource.getBiome(
+                                BiomeCoords.fromBlock(start.getCenterX()), quartY, BiomeCoords.fromBlock(start.getCenterZ()), noiseSampler);
+                        if (!validBiomes.contains(biome)) continue;
+                        seenChunks.add(start.toLong());
+                        predicted.add(placement.getLocatePos(start));
+                    }
+                }
+            }
+        }
+        predicted.sort(Comparator.comparingLong(pos -> {
+            long dx = pos.getX() - center.getX();
+            long dz = pos.getZ() - center.getZ();
+            return dx * dx + dz * dz;
+        }));
+        return predicted;
+    }
+}
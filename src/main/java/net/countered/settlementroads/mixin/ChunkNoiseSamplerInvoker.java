@@ -0,0 +1,13 @@
+package net.countered.settlementroads.mixin;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.world.gen.chunk.ChunkNoiseSampler;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Invoker;
+
+@Mixin(ChunkNoiseSampler.class)
+public interface ChunkNoiseSamplerInvoker {
+	// protected in vanilla, only NoiseChunkGenerator reads interpolated block states
+	@Invoker("sampleBlockState")
+	BlockState settlementroads$sampleBlockState();
+}
@@ -0,0 +1,14 @@
+package net.countered.settlementroads.mixin;
+
+import net.minecraft.world.gen.chunk.AquiferSampler;
+import net.minecraft.world.gen.chunk.NoiseChunkGenerator;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+import java.util.function.Supplier;
+
+@Mixin(NoiseChunkGenerator.class)
+public interface NoiseChunkGeneratorAccessor {
+	@Accessor("fluidLevelSampler")
+	Supplier<AquiferSampler.FluidLevelSampler> settlementroads$getFluidLevelSampler();
+}
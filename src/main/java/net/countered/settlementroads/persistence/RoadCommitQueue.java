@@ -0,0 +1,143 @@
+package net.countered.settlementroads.persistence;
+
+import net.countered.settlementroads.SettlementRoads;
+import net.countered.settlementroads.features.RoadRetrofitService;
+import net.countered.settlementroads.helpers.ConnectionRegistry;
+import net.countered.settlementroads.helpers.Records;
+import net.countered.settlementroads.helpers.RoadRetryPolicy;
+import net.countered.settlementroads.persistence.attachments.WorldDataAttachment;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands results from road worker threads to the server thread. Workers only enqueue on a lock-free queue;
+ * the server tick drains it in bounded batches and is the only place that writes the world attachments.
+ * After a drain that changed anything, an immutable {@link Snapshot} of the structure data is published,
+ * which worldgen and other off-thread readers use instead of touching the attachments.
+ */
+public class RoadCommitQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
+
+    private static final int MAX_COMMITS_PER_TICK = 64;
+
+    public record Snapshot(long version, List<BlockPos> structureLocations, List<Records.StructureConnection> connections) {
+        static final Snapshot EMPTY = new Snapshot(0, List.of(), List.of());
+    }
+
+    private sealed interface Commit permits RoadCommit, StatusCommit, FailureCommit {
+        ServerWorld world();
+    }
+
+    private record RoadCommit(ServerWorld world, Records.RoadData road) implements Commit {}
+
+    private record StatusCommit(ServerWorld world, Records.StructureConnection connection, Records.ConnectionStatus status) implements Commit {}
+
+    private record FailureCommit(ServerWorld world, Records.StructureConnection connection, Records.FailureReason reason, float progress) implements Commit {}
+
+    private static final Queue<Commit> QUEUE = new ConcurrentLinkedQueue<>();
+    private static final Map<RegistryKey<World>, Snapshot> SNAPSHOTS = new ConcurrentHashMap<>();
+    private static final Set<ServerWorld> DIRTY_WORLDS = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong VERSION = new AtomicLong();
+
+    public static void submitRoad(ServerWorld serverWorld, Records.RoadData roadData) {
+        QUEUE.add(new RoadCommit(serverWorld, roadData));
+    }
+
+    public static void submitStatus(ServerWorld serverWorld, Records.StructureConnection connection, Records.ConnectionStatus status) {
+        QUEUE.add(new StatusCommit(serverWorld, connection, status));
+    }
+
+    // marks the connection as failed and records why, see RoadRetryPolicy
+    public static void submitFailure(ServerWorld serverWorld, Records.StructureConnection connection, Records.FailureReason reason, float progress) {
+        QUEUE.add(new FailureCommit(serverWorld, connection, reason, progress));
+    }
+
+    // for server thread code that changed the structure attachments directly
+    public static void markDirty(ServerWorld serverWorld) {
+        DIRTY_WORLDS.add(serverWorld);
+    }
+
+    /**
+     * Latest published structure data of the world. Never null and never modified after publication.
+     */
+    public static Snapshot getSnapshot(ServerWorld serverWorld) {
+        return SNAPSHOTS.getOrDefault(serverWorld.getRegistryKey(), Snapshot.EMPTY);
+    }
+
+    // server thread only
+    public static void drain() {
+        drain(MAX_COMMITS_PER_TICK);
+    }
+
+    // server thread only, applies everything queued so far, used before the worlds are saved for the last time
+    public static void drainAll() {
+        drain(Integer.MAX_VALUE);
+    }
+
+    public static void clear() {
+        QUEUE.clear();
+        SNAPSHOTS.clear();
+        DIRTY_WORLDS.clear();
+    }
+
+    private static void drain(int maxCommits) {
+        Commit commit;
+        while (maxCommits-- > 0 && (commit = QUEUE.poll()) != null) {
+            try {
+                apply(commit);
+            } catch (Exception e) {
+                LOGGER.error("Failed to apply road commit", e);
+            }
+            DIRTY_WORLDS.add(commit.world());
+        }
+        if (DIRTY_WORLDS.isEmpty()) {
+            return;
+        }
+        for (Iterator<ServerWorld> iterator = DIRTY_WORLDS.iterator(); iterator.hasNext(); ) {
+            publish(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    private static void apply(Commit commit) {
+        if (commit instanceof RoadCommit roadCommit) {
+            long roadSeq = RoadRegionStore.forWorld(roadCommit.world()).addRoad(roadCommit.road());
+            // chunks generated before the commit never run the road feature again
+            RoadRetrofitService.forWorld(roadCommit.world()).onRoadCommitted(roadSeq, roadCommit.road());
+        }
+        else if (commit instanceof StatusCommit statusCommit) {
+            updateConnectionStatus(statusCommit.world(), statusCommit.connection(), statusCommit.status());
+        }
+        else if (commit instanceof FailureCommit failureCommit) {
+            RoadRetryPolicy.recordFailure(failureCommit.world(), failureCommit.connection(), failureCommit.reason(), failureCommit.progress());
+        }
+    }
+
+    private static void updateConnectionStatus(ServerWorld serverWorld, Records.StructureConnection connection, Records.ConnectionStatus newStatus) {
+        ConnectionRegistry registry = serverWorld.getAttachedOrCreate(WorldDataAttachment.CONNECTED_STRUCTURES, ConnectionRegistry::new);
+        if (!registry.setStatus(connection.from(), connection.to(), newStatus, serverWorld.getTime())) {
+            LOGGER.debug("Status {} for unknown connection {} -> {}", newStatus, connection.from(), connection.to());
+        }
+    }
+
+    // server thread only
+    public static void publish(ServerWorld serverWorld) {
+        Records.StructureLocationData locationData = serverWorld.getAttached(WorldDataAttachment.STRUCTURE_LOCATIONS);
+        ConnectionRegistry connections = serverWorld.getAttached(WorldDataAttachment.CONNECTED_STRUCTURES);
+        SNAPSHOTS.put(serverWorld.getRegistryKey(), new Snapshot(
+                VERSION.incrementAndGet(),
+                locationData != null ? List.copyOf(locationData.structureLocations()) : List.of(),
+                connections != null ? List.copyOf(connections.connections()) : List.of()
+        ));
+    }
+}
@@ -0,0 +1,157 @@
+package net.countered.settlementroads.persistence;
+
+import com.mojang.datafixers.util.Either;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.DataResult;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import net.countered.settlementroads.SettlementRoads;
+import net.countered.settlementroads.features.roadlogic.RoadDirection;
+import net.countered.settlementroads.features.roadlogic.RoadPathCalculator;
+import net.countered.settlementroads.helpers.Records;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Save format of {@link Records.RoadData}. Roads are written as a versioned compact record: the middle positions
+ * as zigzag varint deltas plus a 2-bit direction per segment, from which the width positions are rebuilt on load.
+ * Roads saved in the old per-block format are still read and are written back compactly on the next save.
+ */
+public class RoadDataCodec {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
+
+    public static final int FORMAT_VERSION = 1;
+
+    private static final RoadDirection[] DIRECTIONS = RoadDirection.values();
+
+    // 旧格式：每个路段保存完整的 BlockPos 列表
+    private static final Codec<Records.RoadData> LEGACY_CODEC = RecordCodecBuilder.create(instance -> instance.group(
+            Codec.INT.fieldOf("width").forGetter(Records.RoadData::width),
+            Codec.INT.fieldOf("road_type").forGetter(Records.RoadData::roadType),
+            BlockState.CODEC.listOf().fieldOf("materials").forGetter(Records.RoadData::materials),
+            Records.RoadSegmentPlacement.CODEC.listOf().fieldOf("placements").forGetter(Records.RoadData::roadSegmentList)
+    ).apply(instance, Records.RoadData::new));
+
+    private record PackedRoad(int format, int width, int roadType, List<BlockState> materials, ByteBuffer waypoints) {
+        static final Codec<PackedRoad> CODEC = RecordCodecBuilder.create(instance -> instance.group(
+                Codec.INT.fieldOf("format").forGetter(PackedRoad::format),
+                Codec.INT.fieldOf("width").forGetter(PackedRoad::width),
+                Codec.INT.fieldOf("road_type").forGetter(PackedRoad::roadType),
+                BlockState.CODEC.listOf().fieldOf("materials").forGetter(PackedRoad::materials),
+                Codec.BYTE_BUFFER.fieldOf("waypoints").forGetter(PackedRoad::waypoints)
+        ).apply(instance, PackedRoad::new));
+    }
+
+    private static final Codec<Records.RoadData> COMPACT_CODEC = PackedRoad.CODEC.flatXmap(RoadDataCodec::unpack, RoadDataCodec::pack);
+
+    public static final Codec<Records.RoadData> CODEC = Codec.either(COMPACT_CODEC, LEGACY_CODEC).xmap(
+            either -> either.map(road -> road, road -> {
+                LOGGER.debug("Migrating road with " + road.roadSegmentList().size() + " segments from the legacy format");
+                return road;
+            }),
+            Either::left
+    );
+
+    private static DataResult<PackedRoad> pack(Records.RoadData road) {
+        List<Records.RoadSegmentPlacement> segments = road.roadSegmentList();
+        int count = segments.size();
+        ByteArrayList out = new ByteArrayList(count * 4 + (count + 3) / 4 + 5);
+        writeVarInt(out, count);
+        int lastX = 0, lastY = 0, lastZ = 0;
+        for (Records.RoadSegmentPlacement segment : segments) {
+            BlockPos pos = segment.middlePos();
+            writeVarInt(out, zigzag(pos.getX() - lastX));
+            writeVarInt(out, zigzag(pos.getY() - lastY));
+            writeVarInt(out, zigzag(pos.getZ() - lastZ));
+            lastX = pos.getX();
+            lastY = pos.getY();
+            lastZ = pos.getZ();
+        }
+        // directions follow the waypoints, four per byte
+        int packed = 0;
+        for (int i = 0; i < count; i++) {
+            RoadDirection direction = RoadDirection.X_AXIS;
+            if (i > 0) {
+                BlockPos pos = segments.get(i).middlePos();
+                BlockPos previous = segments.get(i - 1).middlePos();
+                direction = RoadDirection.fromOffset(pos.getX() - previous.getX(), pos.getZ() - previous.getZ());
+            }
+            packed |= direction.ordinal() << ((i & 3) * 2);
+            if ((i & 3) == 3 || i == count - 1) {
+                out.add((byte) packed);
+                packed = 0;
+            }
+        }
+        return DataResult.success(new PackedRoad(FORMAT_VERSION, road.width(), road.roadType(), road.materials(),
+                ByteBuffer.wrap(out.toByteArray())));
+    }
+
+    private static DataResult<Records.RoadData> unpack(PackedRoad packed) {
+        if (packed.format() != FORMAT_VERSION) {
+            return DataResult.error(() -> "Unsupported road data format " + packed.format());
+        }
+        ByteBuffer in = packed.waypoints().duplicate();
+        try {
+            int count = readVarInt(in);
+            if (count < 0 || count > in.remaining()) {
+                return DataResult.error(() -> "Invalid road waypoint count " + count);
+            }
+            List<BlockPos> middlePositions = new ArrayList<>(count);
+            int x = 0, y = 0, z = 0;
+            for (int i = 0; i < count; i++) {
+                x += unzigzag(readVarInt(in));
+                y += unzigzag(readVarInt(in));
+                z += unzigzag(readVarInt(in));
+                middlePositions.add(new BlockPos(x, y, z));
+            }
+            List<RoadDirection> directions = new ArrayList<>(count);
+            int packedDirections = 0;
+            for (int i = 0; i < count; i++) {
+                if ((i & 3) == 0) {
+                    packedDirections = in.get();
+                }
+                directions.add(DIRECTIONS[(packedDirections >> ((i & 3) * 2)) & 3]);
+            }
+            return DataResult.success(new Records.RoadData(packed.width(), packed.roadType(), packed.materials(),
+                    RoadPathCalculator.rebuildPlacements(middlePositions, directions, packed.width())));
+        }
+        catch (RuntimeException e) {
+            return DataResult.error(() -> "Malformed road waypoints: " + e.getMessage());
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(ByteArrayList out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.add((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.add((byte) value);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("VarInt too long");
+    }
+}
@@ -0,0 +1,202 @@
+package net.countered.settlementroads.persistence;
+
+import net.countered.settlementroads.SettlementRoads;
+import net.countered.settlementroads.helpers.Records;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.nbt.NbtSizeTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of committed roads. Every road gets a sequence number and is appended as one
+ * length and checksum prefixed record, so a commit costs the size of that road and nothing else.
+ * A torn record at the end of the file (from a crash mid-write) is dropped on replay.
+ * After the roads have been compacted into region files the journal is reset to an empty header
+ * that remembers the next sequence number.
+ */
+final class RoadJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
+
+    private static final int MAGIC = 0x53524A31;
+    private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES;
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES + Integer.BYTES;
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+    private final Path file;
+    private FileChannel channel;
+    private long nextSeq = 1;
+    private int entryCount;
+
+    RoadJournal(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the journal and passes every complete record to the consumer in sequence order.
+     */
+    synchronized void open(BiConsumer<Long, Records.RoadData> replay) {
+        try {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() < HEADER_BYTES) {
+                writeHeader();
+                return;
+            }
+            long validEnd = replay(replay);
+            if (validEnd < channel.size()) {
+                LOGGER.warn("Dropping {} bytes of incomplete road journal records in {}", channel.size() - validEnd, file);
+                channel.truncate(validEnd);
+            }
+            channel.position(channel.size());
+        } catch (IOException e) {
+            LOGGER.error("Failed to open road journal {}, new roads will only be kept until the next compaction", file, e);
+            closeQuietly();
+        }
+    }
+
+    private long replay(BiConsumer<Long, Records.RoadData> replay) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        try (in) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a road journal");
+            }
+            nextSeq = in.readLong();
+            long position = HEADER_BYTES;
+            long size = channel.size();
+            while (size - position >= RECORD_HEADER_BYTES) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES || size - position - RECORD_HEADER_BYTES < length) break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (checksum(payload) != checksum) break;
+                Records.RoadData road = decode(payload);
+                if (road == null) break;
+                replay.accept(nextSeq++, road);
+                entryCount++;
+                position += RECORD_HEADER_BYTES + length;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Appends a road and returns its sequence number. The record is written with a single positional write,
+     * so concurrent callers serialise on this journal and never interleave.
+     */
+    synchronized long append(Records.RoadData road) {
+        long seq = nextSeq++;
+        entryCount++;
+        if (channel == null) {
+            return seq;
+        }
+        try {
+            byte[] payload = encode(road);
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length);
+            buffer.putInt(payload.length).putInt(checksum(payload)).put(payload).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to append road to journal {}", file, e);
+        }
+        return seq;
+    }
+
+    // sequence number of the last appended road
+    synchronized long lastSeq() {
+        return nextSeq - 1;
+    }
+
+    synchronized int size() {
+        return entryCount;
+    }
+
+    synchronized void flush() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to flush road journal {}", file, e);
+        }
+    }
+
+    // drops all records once they are stored in region files, keeping the sequence counter
+    synchronized void reset() {
+        entryCount = 0;
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.truncate(0);
+            writeHeader();
+        } catch (IOException e) {
+            LOGGER.error("Failed to reset road journal {}", file, e);
+        }
+    }
+
+    synchronized void close() {
+        flush();
+        closeQuietly();
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putLong(nextSeq).flip();
+        channel.position(0);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(false);
+    }
+
+    private void closeQuietly() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    private static byte[] encode(Records.RoadData road) throws IOException {
+        NbtElement encoded = RoadDataCodec.CODEC.encodeStart(NbtOps.INSTANCE, road).getOrThrow(IOException::new);
+        NbtCompound nbt = new NbtCompound();
+        nbt.put("road", encoded);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        NbtIo.write(nbt, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private Records.RoadData decode(byte[] payload) throws IOException {
+        NbtCompound nbt = NbtIo.read(new DataInputStream(new ByteArrayInputStream(payload)), NbtSizeTracker.ofUnlimitedBytes());
+        return RoadDataCodec.CODEC.parse(NbtOps.INSTANCE, nbt.get("road"))
+                .resultOrPartial(error -> LOGGER.warn("Failed to read road from journal {}: {}", file, error))
+                .orElse(null);
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,423 @@
+package net.countered.settlementroads.persistence;
+
+import com.mojang.serialization.Codec;
+import net.countered.settlementroads.SettlementRoads;
+import net.countered.settlementroads.features.roadlogic.ChunkPlacementPlan;
+import net.countered.settlementroads.features.roadlogic.RoadChunkIndex;
+import net.countered.settlementroads.helpers.Records;
+import net.countered.settlementroads.helpers.RoadExecutors;
+import net.countered.settlementroads.persistence.attachments.WorldDataAttachment;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.nbt.NbtSizeTracker;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+import net.minecraft.world.dimension.DimensionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/**
+ * Road storage split into one file per 512x512 block region under the dimension's data folder.
+ * A region is read the first time a chunk inside it asks for its road segments. Each region stores the pieces
+ * of roads passing through it, with a few segments of context on either side.
+ * Committed roads go to an append-only {@link RoadJournal} and are kept as pending pieces until a compaction
+ * folds them into the region files they touch, so a commit never rewrites existing data. Compactions triggered by
+ * world saves write the region files on {@link RoadExecutors#io()}; only closing the store compacts in place.
+ * Regions that went unused for a while are dropped again, so memory follows the area being generated
+ * rather than the size of the whole network.
+ */
+public class RoadRegionStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
+
+    private static final Map<RegistryKey<World>, RoadRegionStore> STORES = new ConcurrentHashMap<>();
+
+    public static final int REGION_SHIFT = 9;
+    private static final int FORMAT_VERSION = 1;
+    private static final long IDLE_UNLOAD_MILLIS = 5 * 60 * 1000L;
+    // journal entries that trigger a compaction on the next world save
+    private static final int COMPACT_AFTER_ROADS = 64;
+    private static final long COMPACTION_WAIT_MILLIS = 5000;
+    private static final Codec<List<Records.RoadPiece>> PIECES_CODEC = Records.RoadPiece.CODEC.listOf();
+
+    private record PendingPiece(long seq, Records.RoadPiece piece) {}
+
+    private record RegionData(long appliedSeq, List<Records.RoadPiece> pieces) {}
+
+    private final Path directory;
+    private final RoadJournal journal;
+    private final Map<Long, Region> regions = new ConcurrentHashMap<>();
+    // journal pieces not yet compacted, per region key in sequence order
+    private final Map<Long, List<PendingPiece>> pending = new ConcurrentHashMap<>();
+    // region writes of the last background compaction, server thread only
+    private CompletableFuture<Void> compaction = CompletableFuture.completedFuture(null);
+
+    private RoadRegionStore(Path directory) {
+        this.directory = directory;
+        this.journal = new RoadJournal(directory.resolve("journal.bin"));
+    }
+
+    public static RoadRegionStore forWorld(ServerWorld serverWorld) {
+        return STORES.computeIfAbsent(serverWorld.getRegistryKey(), key -> {
+            Path worldDirectory = DimensionType.getSaveDirectory(key, serverWorld.getServer().getSavePath(WorldSavePath.ROOT));
+            RoadRegionStore store = new RoadRegionStore(worldDirectory.resolve("data").resolve(SettlementRoads.MOD_ID).resolve("roads"));
+            store.journal.open(store::addPending);
+            store.migrateAttachment(serverWorld);
+            return store;
+        });
+    }
+
+    // the open store of the world, or null; unlike forWorld it never opens one
+    public static RoadRegionStore get(ServerWorld serverWorld) {
+        return STORES.get(serverWorld.getRegistryKey());
+    }
+
+    public static RoadRegionStore remove(ServerWorld serverWorld) {
+        return STORES.remove(serverWorld.getRegistryKey());
+    }
+
+    public static void saveAll(boolean force) {
+        for (RoadRegionStore store : STORES.values()) {
+            store.save(force);
+        }
+    }
+
+    public static void closeAll() {
+        STORES.values().forEach(RoadRegionStore::close);
+        STORES.clear();
+    }
+
+    public static int regionCoord(int blockCoord) {
+        return blockCoord >> REGION_SHIFT;
+    }
+
+    public ChunkPlacementPlan[] getPlans(ChunkPos chunkPos) {
+        return getRegion(ChunkPos.toLong(regionCoord(chunkPos.getStartX()), regionCoord(chunkPos.getStartZ()))).index.getPlans(chunkPos);
+    }
+
+    /**
+     * Appends a committed road to the journal and queues its pieces for the regions it passes through.
+     * Loaded regions pick the pieces up on their next lookup. Returns the road's sequence number, which
+     * its placement plans carry as {@link ChunkPlacementPlan#roadSeq}.
+     */
+    public long addRoad(Records.RoadData roadData) {
+        synchronized (journal) {
+            long seq = journal.append(roadData);
+            addPending(seq, roadData);
+            return seq;
+        }
+    }
+
+    /**
+     * Reads every stored road piece, including regions that are not loaded, without keeping them loaded.
+     * Meant for debugging views; world generation goes through {@link #getPlans}.
+     */
+    public List<Records.RoadData> readAllPieces() {
+        List<Records.RoadData> roads = new ArrayList<>();
+        Set<Long> keys = new HashSet<>(pending.keySet());
+        if (Files.isDirectory(directory)) {
+            try (Stream<Path> files = Files.list(directory)) {
+                files.forEach(file -> {
+                    long key = parseRegionKey(file.getFileName().toString());
+                    if (key != Long.MIN_VALUE) keys.add(key);
+                });
+            } catch (IOException e) {
+                LOGGER.warn("Failed to list road regions in {}", directory, e);
+            }
+        }
+        for (long key : keys) {
+            Region region = regions.get(key);
+            if (region != null) {
+                region.catchUp(pending.get(key));
+                synchronized (region) {
+                    region.pieces.forEach(piece -> roads.add(piece.road()));
+                }
+                continue;
+            }
+            RegionData data = readRegion(regionFile(key));
+            data.pieces().forEach(piece -> roads.add(piece.road()));
+            List<PendingPiece> regionPending = pending.get(key);
+            if (regionPending != null) {
+                synchronized (regionPending) {
+                    regionPending.stream().filter(entry -> entry.seq() > data.appliedSeq()).forEach(entry -> roads.add(entry.piece().road()));
+                }
+            }
+        }
+        return roads;
+    }
+
+    /**
+     * Flushes the journal and compacts it into the region files once it has grown past
+     * {@link #COMPACT_AFTER_ROADS} entries, or always when forced. Unforced saves compact in the background
+     * and also drop idle regions; forced saves wait for a running background compaction and compact in place.
+     */
+    public void save(boolean force) {
+        journal.flush();
+        if (force) {
+            awaitCompaction();
+            compact();
+        }
+        else {
+            if (journal.size() >= COMPACT_AFTER_ROADS && compaction.isDone()) {
+                compactAsync();
+            }
+            long now = System.currentTimeMillis();
+            regions.values().removeIf(region -> now - region.lastAccess > IDLE_UNLOAD_MILLIS);
+        }
+    }
+
+    public void close() {
+        save(true);
+        journal.close();
+    }
+
+    private void awaitCompaction() {
+        try {
+            compaction.get(COMPACTION_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // region writes are serialised per region, compacting again is safe even if it is still running
+            LOGGER.warn("Background road compaction still running after {} ms", COMPACTION_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.error("Background road compaction failed", e.getCause());
+        }
+    }
+
+    // writes the regions on the I/O executor; roads committed meanwhile stay in the journal for the next compaction
+    private void compactAsync() {
+        long compactedSeq;
+        List<Long> keys;
+        synchronized (journal) {
+            compactedSeq = journal.lastSeq();
+            keys = new ArrayList<>(pending.keySet());
+        }
+        Runnable task = () -> {
+            for (long key : keys) {
+                if (!getRegion(key).write()) {
+                    LOGGER.warn("Road journal compaction aborted, keeping {} journal entries", journal.size());
+                    return;
+                }
+            }
+            synchronized (journal) {
+                if (journal.lastSeq() != compactedSeq) {
+                    LOGGER.debug("Roads were committed during compaction, keeping the journal until the next one");
+                    return;
+                }
+                LOGGER.debug("Compacted {} journal roads into {} road regions in the background", journal.size(), keys.size());
+                pending.clear();
+                journal.reset();
+            }
+        };
+        try {
+            compaction = CompletableFuture.runAsync(task, RoadExecutors.io());
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    // 压缩：把日志中的道路写入对应的区域文件，然后清空日志
+    private void compact() {
+        synchronized (journal) {
+            if (journal.size() == 0) {
+                return;
+            }
+            int written = 0;
+            for (long key : pending.keySet()) {
+                if (!getRegion(key).write()) {
+                    LOGGER.warn("Road journal compaction aborted, keeping {} journal entries", journal.size());
+                    return;
+                }
+                written++;
+            }
+            LOGGER.debug("Compacted {} journal roads into {} road regions, {} loaded", journal.size(), written, regions.size());
+            pending.clear();
+            journal.reset();
+        }
+    }
+
+    // splits a road into one piece per run of segments inside the same region
+    private void addPending(long seq, Records.RoadData roadData) {
+        List<Records.RoadSegmentPlacement> segmentList = roadData.roadSegmentList();
+        int total = segmentList.size();
+        // prev/next lookups need two segments of context, heights are smoothed before the road is stored
+        int margin = 2;
+        Map<Long, List<PendingPiece>> piecesByRegion = new LinkedHashMap<>();
+        int runStart = 0;
+        while (runStart < total) {
+            BlockPos first = segmentList.get(runStart).middlePos();
+            int regionX = regionCoord(first.getX());
+            int regionZ = regionCoord(first.getZ());
+            int runEnd = runStart + 1;
+            while (runEnd < total) {
+                BlockPos pos = segmentList.get(runEnd).middlePos();
+                if (regionCoord(pos.getX()) != regionX || regionCoord(pos.getZ()) != regionZ) break;
+                runEnd++;
+            }
+            int from = Math.max(0, runStart - margin);
+            int to = Math.min(total, runEnd + margin);
+            Records.RoadData slice = new Records.RoadData(roadData.width(), roadData.roadType(), roadData.materials(),
+                    new ArrayList<>(segmentList.subList(from, to)));
+            piecesByRegion.computeIfAbsent(ChunkPos.toLong(regionX, regionZ), key -> new ArrayList<>())
+                    .add(new PendingPiece(seq, new Records.RoadPiece(from, total, slice, seq)));
+            runStart = runEnd;
+        }
+        // all pieces of one road in a region become visible together
+        piecesByRegion.forEach((key, pieces) -> {
+            List<PendingPiece> regionPending = pending.computeIfAbsent(key, k -> new ArrayList<>());
+            synchronized (regionPending) {
+                regionPending.addAll(pieces);
+            }
+        });
+    }
+
+    private Region getRegion(long key) {
+        Region region = regions.computeIfAbsent(key, this::loadRegion);
+        region.lastAccess = System.currentTimeMillis();
+        region.catchUp(pending.get(key));
+        return region;
+    }
+
+    private Region loadRegion(long key) {
+        Path file = regionFile(key);
+        RegionData data = Files.exists(file) ? readRegion(file) : new RegionData(0, List.of());
+        Region region = new Region(ChunkPos.getPackedX(key), ChunkPos.getPackedZ(key), file, data.appliedSeq());
+        data.pieces().forEach(region::addPiece);
+        return region;
+    }
+
+    private Path regionFile(long key) {
+        return directory.resolve("r." + ChunkPos.getPackedX(key) + "." + ChunkPos.getPackedZ(key) + ".dat");
+    }
+
+    private RegionData readRegion(Path file) {
+        if (!Files.exists(file)) {
+            return new RegionData(0, List.of());
+        }
+        try {
+            NbtCompound nbt = NbtIo.readCompressed(file, NbtSizeTracker.ofUnlimitedBytes());
+            int format = nbt.getInt("format");
+            if (format != FORMAT_VERSION) {
+                LOGGER.warn("Skipping road region {} with unsupported format {}", file, format);
+                return new RegionData(0, List.of());
+            }
+            List<Records.RoadPiece> pieces = PIECES_CODEC.parse(NbtOps.INSTANCE, nbt.get("pieces"))
+                    .resultOrPartial(error -> LOGGER.warn("Failed to read road region {}: {}", file, error))
+                    .orElse(List.of());
+            return new RegionData(nbt.getLong("applied_seq"), pieces);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read road region {}", file, e);
+            return new RegionData(0, List.of());
+        }
+    }
+
+    private static long parseRegionKey(String fileName) {
+        String[] parts = fileName.split("\\.");
+        if (parts.length != 4 || !parts[0].equals("r") || !parts[3].equals("dat")) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return ChunkPos.toLong(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    // 旧存档：把挂在世界上的整条道路列表迁移到分区存储
+    private void migrateAttachment(ServerWorld serverWorld) {
+        List<Records.RoadData> legacyRoads = serverWorld.getAttached(WorldDataAttachment.ROAD_DATA_LIST);
+        if (legacyRoads == null) {
+            return;
+        }
+        for (Records.RoadData roadData : legacyRoads) {
+            addRoad(roadData);
+        }
+        serverWorld.removeAttached(WorldDataAttachment.ROAD_DATA_LIST);
+        LOGGER.info("Migrated {} roads to region storage", legacyRoads.size());
+    }
+
+    private static final class Region {
+        final Path file;
+        final List<Records.RoadPiece> pieces = new ArrayList<>();
+        final RoadChunkIndex index;
+        volatile long lastAccess;
+        // highest journal sequence number contained in this region
+        private long appliedSeq;
+
+        Region(int regionX, int regionZ, Path file, long appliedSeq) {
+            this.file = file;
+            this.index = new RoadChunkIndex(regionX, regionZ);
+            this.appliedSeq = appliedSeq;
+        }
+
+        synchronized void addPiece(Records.RoadPiece piece) {
+            pieces.add(piece);
+            index.addPiece(piece);
+        }
+
+        // applies the pending pieces newer than this region, the list is ordered by sequence number
+        void catchUp(List<PendingPiece> regionPending) {
+            if (regionPending == null) {
+                return;
+            }
+            synchronized (regionPending) {
+                int size = regionPending.size();
+                synchronized (this) {
+                    if (size == 0 || regionPending.get(size - 1).seq() <= appliedSeq) {
+                        return;
+                    }
+                    int first = size;
+                    while (first > 0 && regionPending.get(first - 1).seq() > appliedSeq) {
+                        first--;
+                    }
+                    for (int i = first; i < size; i++) {
+                        addPiece(regionPending.get(i).piece());
+                    }
+                    appliedSeq = regionPending.get(size - 1).seq();
+                }
+            }
+        }
+
+        // holds the region for the whole write, so a background and a closing compaction never share the temp file
+        synchronized boolean write() {
+            Optional<NbtElement> encoded = PIECES_CODEC.encodeStart(NbtOps.INSTANCE, pieces)
+                    .resultOrPartial(error -> LOGGER.warn("Failed to encode road region {}: {}", file, error));
+            if (encoded.isEmpty()) {
+                return false;
+            }
+            NbtCompound nbt = new NbtCompound();
+            nbt.putInt("format", FORMAT_VERSION);
+            nbt.putLong("applied_seq", appliedSeq);
+            nbt.put("pieces", encoded.get());
+            try {
+                Files.createDirectories(file.getParent());
+                Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                NbtIo.writeCompressed(nbt, temp);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            } catch (IOException e) {
+                LOGGER.error("Failed to write road region {}", file, e);
+                return false;
+            }
+        }
+    }
+}
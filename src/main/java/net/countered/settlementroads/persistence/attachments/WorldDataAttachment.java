@@ -2,6 +2,8 @@ package net.countered.settlementroads.persistence.attachments;
 
 import com.mojang.serialization.Codec;
 import net.countered.settlementroads.SettlementRoads;
+import net.countered.settlementroads.persistence.RoadDataCodec;
+import net.countered.settlementroads.helpers.ConnectionRegistry;
 import net.countered.settlementroads.helpers.Records;
 import net.fabricmc.fabric.api.attachment.v1.AttachmentRegistry;
 import net.fabricmc.fabric.api.attachment.v1.AttachmentType;
@@ -14,9 +16,9 @@ import java.util.List;
 public class WorldDataAttachment {
     private static final Logger LOGGER = LoggerFactory.getLogger(SettlementRoads.MOD_ID);
 
-    public static final AttachmentType<List<Records.StructureConnection>> CONNECTED_STRUCTURES = AttachmentRegistry.createPersistent(
+    public static final AttachmentType<ConnectionRegistry> CONNECTED_STRUCTURES = AttachmentRegistry.createPersistent(
             Identifier.of(SettlementRoads.MOD_ID, "connected_villages"),
-            Codec.list(Records.StructureConnection.CODEC)
+            ConnectionRegistry.CODEC
     );
 
 
@@ -25,9 +27,10 @@ public class WorldDataAttachment {
             Records.StructureLocationData.CODEC
     );
 
+    // only read to migrate older saves, roads are stored by RoadRegionStore
     public static final AttachmentType<List<Records.RoadData>> ROAD_DATA_LIST = AttachmentRegistry.createPersistent(
             Identifier.of(SettlementRoads.MOD_ID, "road_chunk_data_map"),
-            Codec.list(Records.RoadData.CODEC)
+            Codec.list(RoadDataCodec.CODEC)
     );
 
     public static void registerWorldDataAttachment() {